@@ -0,0 +1,36 @@
+/*
+ * Round timeout derived from observed commit latency, in the style of TCP's RTO:
+ * smoothed latency plus four times its mean deviation, doubled for every failed view
+ * at the same height and clamped to [MIN_MILLIS, maxMillis]. Until the first sample
+ * arrives the configured timeout is used.
+ */
+public class AdaptiveTimeout {
+    private static final long MIN_MILLIS = 250;
+    private static final int MAX_BACKOFF_SHIFT = 6;
+
+    private final long initialMillis;
+    private final long maxMillis;
+    private double smoothed = -1;
+    private double deviation;
+
+    public AdaptiveTimeout(long initialMillis, long maxMillis) {
+        this.initialMillis = initialMillis;
+        this.maxMillis = Math.max(maxMillis, MIN_MILLIS);
+    }
+
+    public synchronized void sample(long latencyMillis) {
+        if (smoothed < 0) {
+            smoothed = latencyMillis;
+            deviation = latencyMillis / 2.0;
+        } else {
+            deviation = 0.75 * deviation + 0.25 * Math.abs(latencyMillis - smoothed);
+            smoothed = 0.875 * smoothed + 0.125 * latencyMillis;
+        }
+    }
+
+    public synchronized long millis(int failedViews) {
+        long base = smoothed < 0 ? initialMillis : (long) Math.ceil(smoothed + 4 * deviation);
+        long backedOff = base << Math.min(failedViews, MAX_BACKOFF_SHIFT);
+        return Math.max(MIN_MILLIS, Math.min(maxMillis, backedOff));
+    }
+}
@@ -1,7 +1,9 @@
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
+import java.util.List;
 
-public class Block implements Serializable{
+public final class Block implements Serializable{
     private static final long serialVersionUID = 1L;
 
     private final int index;
@@ -12,20 +14,12 @@ public class Block implements Serializable{
     private final String previousHash;
     private final String hash;
     private final String signature;
-
+    private final SignatureScheme signatureScheme;
+    private final transient List<Transaction> transactions;
+    private final QuorumCertificate certificate;
+    private transient volatile byte[] payloadBytes;
+    private transient volatile byte[] hashBytes;
     
-    public Block(int index, String dataPath, String model,
-                 String previousHash, String blockProposerId, PrivateKey privateKey) throws Exception {
-        this.index= index;
-        this.timestamp = System.currentTimeMillis();
-        this.previousHash = previousHash;
-        this.blockProposerId = blockProposerId;
-        this.dataHash = CryptoUtils.hashFile(dataPath);
-        this.modelHash = CryptoUtils.calculateHash(model);
-        this.hash = CryptoUtils.calculateHash(getPayload());
-        this.signature = CryptoUtils.signData(this.hash, privateKey);
-    }
-
     public Block(PrivateKey privateKey, String model){
         this.index= 0;
         this.timestamp = 0;
@@ -33,8 +27,72 @@ public class Block implements Serializable{
         this.blockProposerId = "Genesis";
         this.dataHash = "0";
         this.modelHash = CryptoUtils.calculateHash(model);
-        this.hash = CryptoUtils.calculateHash(getPayload());
+        this.hash = CryptoUtils.toHex(CryptoUtils.sha256(getPayloadBytes()));
         this.signature =  CryptoUtils.signData(this.hash, privateKey);
+        this.signatureScheme = SignatureScheme.of(privateKey);
+        this.transactions = List.of();
+        this.certificate = null;
+    }
+
+    public Block(int index, long timestamp, String dataHash, String modelHash,
+                 String blockProposerId, String previousHash, String hash, String signature) {
+        this(index, timestamp, dataHash, modelHash, blockProposerId, previousHash, hash, signature, List.of());
+    }
+
+    public Block(int index, long timestamp, String dataHash, String modelHash, String blockProposerId,
+                 String previousHash, String hash, String signature, List<Transaction> transactions) {
+        this(index, timestamp, dataHash, modelHash, blockProposerId, previousHash, hash, signature, SignatureScheme.RSA,
+             transactions, null);
+    }
+
+    public Block(int index, long timestamp, String dataHash, String modelHash, String blockProposerId, String previousHash,
+                 String hash, String signature, SignatureScheme signatureScheme, List<Transaction> transactions) {
+        this(index, timestamp, dataHash, modelHash, blockProposerId, previousHash, hash, signature, signatureScheme,
+             transactions, null);
+    }
+
+    private Block(int index, long timestamp, String dataHash, String modelHash, String blockProposerId, String previousHash,
+                  String hash, String signature, SignatureScheme signatureScheme, List<Transaction> transactions,
+                  QuorumCertificate certificate) {
+        this.index = index;
+        this.timestamp = timestamp;
+        this.dataHash = dataHash;
+        this.modelHash = modelHash;
+        this.blockProposerId = blockProposerId;
+        this.previousHash = previousHash;
+        this.hash = hash;
+        this.signature = signature;
+        this.signatureScheme = signatureScheme;
+        this.transactions = transactions;
+        this.certificate = certificate;
+    }
+
+    private static Block forge(int index, long timestamp, String dataHash, String model,
+                               String previousHash, String blockProposerId, PrivateKey privateKey) {
+        Block unsigned = new Block(index, timestamp, dataHash, CryptoUtils.calculateHash(model),
+                                   blockProposerId, previousHash, null, null);
+        byte[] hashBytes = CryptoUtils.sha256(unsigned.getPayloadBytes());
+        String hash = CryptoUtils.toHex(hashBytes);
+        Block block = new Block(index, unsigned.timestamp, dataHash, unsigned.modelHash, blockProposerId, previousHash,
+                                hash, CryptoUtils.signData(hash, privateKey), SignatureScheme.of(privateKey), List.of());
+        block.payloadBytes = unsigned.payloadBytes;
+        block.hashBytes = hashBytes;
+        return block;
+    }
+
+    public static Block forge(int index, List<Transaction> transactions, String model,
+                              String previousHash, String blockProposerId, PrivateKey privateKey) {
+        return forge(index, System.currentTimeMillis(), transactions, model, previousHash, blockProposerId, privateKey);
+    }
+
+    public static Block forge(int index, long timestamp, List<Transaction> transactions, String model,
+                              String previousHash, String blockProposerId, PrivateKey privateKey) {
+        Block header = forge(index, timestamp, Transaction.merkleRoot(transactions), model, previousHash, blockProposerId, privateKey);
+        Block block = new Block(index, header.timestamp, header.dataHash, header.modelHash, blockProposerId, previousHash,
+                                header.hash, header.signature, header.signatureScheme, List.copyOf(transactions));
+        block.payloadBytes = header.payloadBytes;
+        block.hashBytes = header.hashBytes;
+        return block;
     }
 
     public int getIndex() { return index; }
@@ -53,5 +111,39 @@ public class Block implements Serializable{
 
     public String getSignature() { return signature; }
 
+    /* The scheme the proposer signed with; blocks serialized before schemes existed are RSA. */
+    public SignatureScheme getSignatureScheme() { return signatureScheme == null ? SignatureScheme.RSA : signatureScheme; }
+
+    public List<Transaction> getTransactions() { return transactions; }
+
+    public QuorumCertificate getCertificate() { return certificate; }
+
+    public Block withCertificate(QuorumCertificate certificate) {
+        Block block = new Block(index, timestamp, dataHash, modelHash, blockProposerId, previousHash, hash, signature,
+                                signatureScheme, transactions, certificate);
+        block.payloadBytes = payloadBytes;
+        block.hashBytes = hashBytes;
+        return block;
+    }
+
     public String getPayload(){ return index+ timestamp + dataHash + modelHash + blockProposerId + previousHash; }
-}
\ No newline at end of file
+
+    /*
+     * The UTF-8 payload the hash is taken over and the hash itself as raw bytes, each
+     * built once per Block, so re-validating a block does no string work. Hex is kept
+     * for display, map keys and the signed message.
+     */
+    public byte[] getPayloadBytes() {
+        byte[] bytes = payloadBytes;
+        if (bytes == null) payloadBytes = bytes = getPayload().getBytes(StandardCharsets.UTF_8);
+        return bytes;
+    }
+
+    public byte[] getHashBytes() {
+        byte[] bytes = hashBytes;
+        if (bytes == null && hash != null) hashBytes = bytes = CryptoUtils.fromHex(hash);
+        return bytes;
+    }
+
+    private Object writeReplace() { return MessageCodec.Serialized.of(this); }
+}
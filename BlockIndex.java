@@ -0,0 +1,338 @@
+import java.util.*;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+
+/*
+ * Secondary indexes over committed blocks for audit queries such as "every update from
+ * HospitalB for model X between t1 and t2". Blockchain feeds each block in at commit;
+ * after a restart the indexes are rebuilt from the store by the first query.
+ *
+ * An update is a transaction, so submitters and data hashes are indexed per transaction
+ * and point at the block that carries it; a block without transactions predates batching
+ * and counts as its proposer's own update. Submitters and model hashes have few distinct
+ * values, so each maps to a posting list of block indexes. Data hashes are mostly
+ * distinct, so transactions sharing one are chained through an open-addressing table
+ * keyed by a 64-bit hash of it. Blockchain refuses a block older than its parent, so
+ * timestamps never decrease along the chain and a time range is bounded by two binary
+ * searches over the per-block time column. Model and time columns let the remaining
+ * conditions be checked without decoding blocks.
+ *
+ * A query walks whichever of its conditions matches the fewest blocks and returns
+ * matching blocks in block order, a page at a time. Its cost depends on that candidate
+ * count and the page size, not on the chain length.
+ *
+ * Blocks are decoded outside the index monitor, both by the first query's build and when
+ * a page is read, so commits only wait for the in-memory column updates. Blocks committed
+ * while the build runs are queued and indexed when it finishes.
+ */
+public class BlockIndex {
+    public record Query(String submitter, String modelHash, String dataHash, long fromTime, long toTime) {
+        public static Query all() { return new Query(null, null, null, Long.MIN_VALUE, Long.MAX_VALUE); }
+
+        public Query submitter(String id) { return new Query(id, modelHash, dataHash, fromTime, toTime); }
+
+        public Query model(String hash) { return new Query(submitter, hash, dataHash, fromTime, toTime); }
+
+        public Query data(String hash) { return new Query(submitter, modelHash, hash, fromTime, toTime); }
+
+        /* Timestamps from fromTime to toTime, both inclusive. */
+        public Query between(long from, long to) { return new Query(submitter, modelHash, dataHash, from, to); }
+    }
+
+    /* Matching blocks in index order; pass next as after to get the following page, -1 when there is none. */
+    public record Page(List<Block> blocks, int next) {}
+
+    private static final class IntList {
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        /* Position of the first value greater than after. */
+        int after(int after) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[mid] <= after) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+
+        boolean contains(int value) {
+            int position = after(value - 1);
+            return position < size && values[position] == value;
+        }
+    }
+
+    private final IntFunction<Block> blocks;
+    private final IntSupplier firstIndex;
+    private final IntSupplier height;
+
+    private static final int BUILD_BATCH = 256;
+
+    private final Object buildLock = new Object();
+    private volatile boolean built;
+    private boolean building;
+    private final List<Block> queued = new ArrayList<>();
+    private int base = -1;
+    private int next;
+
+    private final Map<String, Integer> submitterCodes = new HashMap<>();
+    private final List<IntList> bySubmitter = new ArrayList<>();
+    private final Map<String, Integer> modelCodes = new HashMap<>();
+    private final List<IntList> byModel = new ArrayList<>();
+
+    private int[] modelColumn = new int[1024];
+    private long[] timeColumn = new long[1024];
+
+    private int[] entryBlock = new int[1024];
+    private int[] entryChain = new int[1024];
+    private int entries;
+
+    private long[] dataKeys = new long[2048];
+    private int[] dataHeads = new int[2048];
+    private int dataCount;
+
+    public BlockIndex(IntFunction<Block> blocks, IntSupplier firstIndex, IntSupplier height) {
+        this.blocks = blocks;
+        this.firstIndex = firstIndex;
+        this.height = height;
+    }
+
+    /* Called for every committed block, in order; ignored until the first query starts building the index. */
+    public synchronized void add(Block block) {
+        if (built) index(block);
+        else if (building) queued.add(block);
+    }
+
+    public Page query(Query query, int after, int limit) {
+        build();
+        final List<Block> page = new ArrayList<>(Math.min(limit, 256));
+        int cursor = after;
+        while (page.size() < limit) {
+            final int wanted = limit - page.size();
+            final int[] matched;
+            synchronized (this) {
+                matched = candidates(query, cursor, wanted);
+            }
+            for (int index : matched) {
+                Block block = blocks.apply(index);
+                if (block == null || (query.dataHash() != null && !carries(block, query.dataHash()))) continue;
+                page.add(block);
+            }
+            if (matched.length < wanted) break;
+            cursor = matched[matched.length - 1];
+        }
+        return new Page(page, page.size() == limit ? page.get(limit - 1).getIndex() : -1);
+    }
+
+    public Page query(Query query, int limit) { return query(query, -1, limit); }
+
+    /* Up to n indexes after the given one whose columns match the query, in block order. */
+    private int[] candidates(Query query, int after, int n) {
+        if (base < 0) return new int[0];
+        if (query.submitter() != null && !submitterCodes.containsKey(query.submitter())) return new int[0];
+        if (query.modelHash() != null && !modelCodes.containsKey(query.modelHash())) return new int[0];
+        final IntList submitted = query.submitter() == null ? null : bySubmitter.get(submitterCodes.get(query.submitter()));
+
+        final int[] candidates;
+        int from;
+        int to;
+        if (query.dataHash() != null) {
+            candidates = dataMatches(query.dataHash(), after);
+            from = 0;
+            to = candidates.length;
+        } else {
+            IntList list = smallest(submitted, query.modelHash() == null ? null : byModel.get(modelCodes.get(query.modelHash())));
+            int timeFrom = base + firstAtLeast(query.fromTime());
+            int timeTo = query.toTime() == Long.MAX_VALUE ? next : base + firstAtLeast(query.toTime() + 1);
+            int scanFrom = Math.max(after + 1, Math.max(timeFrom, firstIndex.getAsInt()));
+            if (list == null || timeTo - scanFrom < list.size - list.after(after)) {
+                candidates = null;
+                from = scanFrom;
+                to = timeTo;
+            } else {
+                candidates = list.values;
+                from = list.after(after);
+                to = list.size;
+            }
+        }
+
+        final IntList matched = new IntList();
+        for (int i = from; i < to && matched.size < n; i++) {
+            int index = candidates == null ? i : candidates[i];
+            if (matches(query, submitted, index)) matched.add(index);
+        }
+        return Arrays.copyOf(matched.values, matched.size);
+    }
+
+    private void build() {
+        if (built) return;
+        synchronized (buildLock) {
+            synchronized (this) {
+                if (built) return;
+                building = true;
+            }
+            long start = System.nanoTime();
+            int first = firstIndex.getAsInt();
+            int end = height.getAsInt();
+            List<Block> batch = new ArrayList<>(BUILD_BATCH);
+            for (int i = first; i < end; i += BUILD_BATCH) {
+                batch.clear();
+                for (int j = i; j < Math.min(end, i + BUILD_BATCH); j++) {
+                    Block block = blocks.apply(j);
+                    if (block != null) batch.add(block);
+                }
+                synchronized (this) {
+                    for (Block block : batch) index(block);
+                }
+            }
+            synchronized (this) {
+                for (Block block : queued) index(block);
+                queued.clear();
+                building = false;
+                built = true;
+            }
+            if (end - first > 10_000) {
+                System.out.printf("Indexed %d blocks in %.1f ms%n", end - first, (System.nanoTime() - start) / 1e6);
+            }
+        }
+    }
+
+    private void index(Block block) {
+        final int index = block.getIndex();
+        if (index < next) return;
+        if (base < 0) base = index;
+        final int position = index - base;
+        if (position >= timeColumn.length) {
+            int capacity = Math.max(timeColumn.length * 2, position + 1);
+            modelColumn = Arrays.copyOf(modelColumn, capacity);
+            timeColumn = Arrays.copyOf(timeColumn, capacity);
+        }
+        for (int gap = next - base; gap >= 0 && gap < position; gap++) {
+            modelColumn[gap] = -1;
+            timeColumn[gap] = gap == 0 ? Long.MIN_VALUE : timeColumn[gap - 1];
+        }
+
+        modelColumn[position] = post(modelCodes, byModel, block.getModelHash(), index);
+        timeColumn[position] = block.getTimestamp();
+        List<Transaction> transactions = block.getTransactions();
+        if (transactions.isEmpty()) {
+            post(submitterCodes, bySubmitter, block.getBlockProposerId(), index);
+            putData(key(block.getDataHash()), index);
+        }
+        for (Transaction tx : transactions) {
+            post(submitterCodes, bySubmitter, tx.getSubmitterId(), index);
+            putData(key(tx.getDataHash()), index);
+        }
+        next = index + 1;
+    }
+
+    /* Adds index to value's posting list once, however many of the block's transactions carry it. */
+    private static int post(Map<String, Integer> codes, List<IntList> lists, String value, int index) {
+        Integer code = codes.get(value);
+        if (code == null) {
+            code = lists.size();
+            codes.put(value, code);
+            lists.add(new IntList());
+        }
+        IntList list = lists.get(code);
+        if (list.size == 0 || list.values[list.size - 1] != index) list.add(index);
+        return code;
+    }
+
+    private boolean matches(Query query, IntList submitted, int index) {
+        final int position = index - base;
+        if (position < 0 || position >= next - base || modelColumn[position] < 0) return false;
+        if (query.modelHash() != null && modelColumn[position] != modelCodes.get(query.modelHash())) return false;
+        final long time = timeColumn[position];
+        if (time < query.fromTime() || time > query.toTime()) return false;
+        return submitted == null || submitted.contains(index);
+    }
+
+    private static boolean carries(Block block, String dataHash) {
+        if (block.getTransactions().isEmpty()) return dataHash.equals(block.getDataHash());
+        for (Transaction tx : block.getTransactions()) {
+            if (dataHash.equals(tx.getDataHash())) return true;
+        }
+        return false;
+    }
+
+    private static IntList smallest(IntList a, IntList b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return a.size <= b.size ? a : b;
+    }
+
+    /* Position of the first block stamped at or after bound. */
+    private int firstAtLeast(long bound) {
+        int lo = 0;
+        int hi = next - base;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (timeColumn[mid] < bound) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    private static long key(String hash) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < hash.length(); i++) {
+            h ^= hash.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /* Records a transaction of block index under key, chained to the previous entry with the same key. */
+    private void putData(long key, int index) {
+        if (2 * (dataCount + 1) > dataHeads.length) rehashData(dataHeads.length * 2);
+        if (entries == entryBlock.length) {
+            entryBlock = Arrays.copyOf(entryBlock, entries * 2);
+            entryChain = Arrays.copyOf(entryChain, entries * 2);
+        }
+        int mask = dataHeads.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (dataHeads[slot] != 0 && dataKeys[slot] != key) slot = (slot + 1) & mask;
+        if (dataHeads[slot] == 0) dataCount++;
+        entryBlock[entries] = index;
+        entryChain[entries] = dataHeads[slot] - 1;
+        dataKeys[slot] = key;
+        dataHeads[slot] = ++entries;
+    }
+
+    private void rehashData(int capacity) {
+        long[] oldKeys = dataKeys;
+        int[] oldHeads = dataHeads;
+        dataKeys = new long[capacity];
+        dataHeads = new int[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldHeads.length; i++) {
+            if (oldHeads[i] == 0) continue;
+            int slot = (int) (oldKeys[i] ^ (oldKeys[i] >>> 32)) & mask;
+            while (dataHeads[slot] != 0) slot = (slot + 1) & mask;
+            dataKeys[slot] = oldKeys[i];
+            dataHeads[slot] = oldHeads[i];
+        }
+    }
+
+    private int[] dataMatches(String hash, int after) {
+        long key = key(hash);
+        int mask = dataHeads.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (dataHeads[slot] != 0 && dataKeys[slot] != key) slot = (slot + 1) & mask;
+        IntList matches = new IntList();
+        for (int entry = dataHeads[slot] - 1; entry >= 0 && entryBlock[entry] > after; entry = entryChain[entry]) {
+            if (matches.size == 0 || matches.values[matches.size - 1] != entryBlock[entry]) matches.add(entryBlock[entry]);
+        }
+        int[] ascending = new int[matches.size];
+        for (int i = 0; i < matches.size; i++) ascending[i] = matches.values[matches.size - 1 - i];
+        return ascending;
+    }
+}
@@ -0,0 +1,414 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/*
+ * Append-only log of committed blocks, split into segment files named after the index
+ * of their first block. Each record is [length:i32][crc32c:i32][MessageCodec block].
+ * Appends are made durable with group commit: whichever committer reaches the fsync
+ * first forces the segment on behalf of every record written before it.
+ *
+ * Reads go through read-only mappings of the segment files. Block objects are not
+ * retained; the store only keeps an index->offset table and an open-addressing
+ * hash->index table keyed by the first 8 bytes of the block hash.
+ *
+ * After a stable snapshot, compact() drops whole segments below it, so the store may
+ * start at a later index than 0 (getFirstIndex()). Dropped segments are moved to
+ * archive/ or deleted.
+ *
+ *   -Dstore.segmentBytes=<n>   roll to a new segment file after this many bytes (default 64 MB);
+ *                              a segment is mapped and addressed as a whole, so at most
+ *                              MAX_SEGMENT_BYTES (just under 2 GB)
+ */
+public class BlockStore implements Closeable {
+    private static final long SEGMENT_BYTES = Long.getLong("store.segmentBytes", 64L * 1024 * 1024);
+    private static final int HEADER_BYTES = 2 * Integer.BYTES;
+    private static final int MAX_RECORD_BYTES = 16 * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".log";
+    /* A segment may overrun the limit by one record and must still fit an int offset and a single mapping. */
+    private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE - HEADER_BYTES - MAX_RECORD_BYTES;
+
+    private final Path dir;
+    private final List<Segment> segments = new ArrayList<>();
+    private long[] offsets = new long[1024];
+    private int first;
+    private int count;
+    private long[] hashKeys = new long[2048];
+    private int[] hashSlots = new int[2048];
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(4096);
+
+    private final Object syncLock = new Object();
+    private long writtenSeq;
+    private long syncedSeq;
+    private volatile IOException failure;
+
+    private static final class Segment {
+        final int baseIndex;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        MappedByteBuffer mapped;
+
+        Segment(int baseIndex, Path path) throws IOException {
+            this.baseIndex = baseIndex;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+    }
+
+    public BlockStore(Path dir) {
+        if (SEGMENT_BYTES < 1 || SEGMENT_BYTES > MAX_SEGMENT_BYTES) {
+            throw new IllegalArgumentException("store.segmentBytes must be between 1 and " + MAX_SEGMENT_BYTES);
+        }
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int size() { return count; }
+
+    public synchronized int getFirstIndex() { return first; }
+
+    /*
+     * Scans every segment in order, handing each decoded block to accept. Scanning stops
+     * at the first torn, corrupt or rejected record; the log is truncated there and any
+     * later segments are deleted. Returns the number of blocks kept.
+     */
+    public synchronized int recover(Predicate<Block> accept) {
+        try {
+            List<Path> paths;
+            try (Stream<Path> files = Files.list(dir)) {
+                paths = files.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+            }
+            boolean truncated = false;
+            for (Path path : paths) {
+                if (truncated) {
+                    Files.delete(path);
+                    continue;
+                }
+                String name = path.getFileName().toString();
+                Segment segment = new Segment(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), path);
+                if (segment.size > Integer.MAX_VALUE) {
+                    segment.channel.close();
+                    throw new IOException(path + " is " + segment.size + " bytes, more than one segment can map");
+                }
+                if (segments.isEmpty()) first = count = segment.baseIndex;
+                if (segment.baseIndex != count) {
+                    segment.channel.close();
+                    Files.delete(path);
+                    truncated = true;
+                    continue;
+                }
+                segments.add(segment);
+                long valid = scan(segment, accept);
+                if (valid < segment.size) {
+                    System.out.println("BlockStore: truncating " + path + " at " + valid + " of " + segment.size + " bytes");
+                    segment.channel.truncate(valid);
+                    segment.channel.force(true);
+                    segment.size = valid;
+                    truncated = true;
+                }
+            }
+            return count;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long scan(Segment segment, Predicate<Block> accept) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        CRC32C crc = new CRC32C();
+        long bufferStart = 0;
+        long position = 0;
+        boolean eof = false;
+
+        while (true) {
+            buffer.flip();
+            while (buffer.remaining() >= HEADER_BYTES) {
+                int length = buffer.getInt(buffer.position());
+                if (length <= 0 || length > MAX_RECORD_BYTES) return position;
+                if (buffer.remaining() < HEADER_BYTES + length) break;
+
+                int checksum = buffer.getInt(buffer.position() + Integer.BYTES);
+                ByteBuffer body = buffer.slice(buffer.position() + HEADER_BYTES, length);
+                crc.reset();
+                crc.update(body.duplicate());
+                if ((int) crc.getValue() != checksum) return position;
+
+                Block block;
+                try {
+                    block = MessageCodec.getBlock(body);
+                } catch (RuntimeException e) {
+                    return position;
+                }
+                if (block.getIndex() != count || !accept.test(block)) return position;
+
+                recordOffset(position, block.getHash());
+                buffer.position(buffer.position() + HEADER_BYTES + length);
+                position += HEADER_BYTES + length;
+            }
+            if (eof) return position;
+
+            int needed = buffer.remaining() >= HEADER_BYTES ? HEADER_BYTES + buffer.getInt(buffer.position()) : 0;
+            bufferStart += buffer.position();
+            buffer.compact();
+            if (needed > buffer.capacity()) {
+                buffer.flip();
+                buffer = ByteBuffer.allocate(needed).put(buffer);
+            }
+            while (buffer.hasRemaining()) {
+                int read = segment.channel.read(buffer, bufferStart + buffer.position());
+                if (read < 0) {
+                    eof = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    public void append(Block block) { append(List.of(block)); }
+
+    /*
+     * Throws UncheckedIOException when the blocks may not be durable. A failed write or
+     * fsync can leave a torn record behind, so every later append fails too; reopening
+     * the store truncates the log back to its last whole record.
+     */
+    public void append(List<Block> blocks) {
+        if (failure != null) throw new UncheckedIOException("Block store failed earlier; restart to recover", failure);
+        long seq;
+        try {
+            synchronized (this) {
+                for (Block block : blocks) {
+                    if (block.getIndex() != count) {
+                        throw new IllegalArgumentException("Expected block " + count + " but got " + block.getIndex());
+                    }
+                    writeRecord(block);
+                }
+                seq = ++writtenSeq;
+            }
+            awaitDurable(seq);
+        } catch (IOException e) {
+            failure = e;
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeRecord(Block block) throws IOException {
+        ByteBuffer record = encode(block);
+        Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (active == null || (active.size > 0 && active.size + record.remaining() > SEGMENT_BYTES)) {
+            if (active != null) active.channel.force(false);
+            active = new Segment(count, dir.resolve(String.format("%012d%s", count, SEGMENT_SUFFIX)));
+            segments.add(active);
+        }
+        long offset = active.size;
+        while (record.hasRemaining()) {
+            active.size += active.channel.write(record, active.size);
+        }
+        recordOffset(offset, block.getHash());
+    }
+
+    private ByteBuffer encode(Block block) {
+        while (true) {
+            writeBuffer.clear();
+            try {
+                writeBuffer.position(HEADER_BYTES);
+                MessageCodec.putBlock(writeBuffer, block);
+                break;
+            } catch (BufferOverflowException e) {
+                writeBuffer = ByteBuffer.allocate(writeBuffer.capacity() * 2);
+            }
+        }
+        int length = writeBuffer.position() - HEADER_BYTES;
+        CRC32C crc = new CRC32C();
+        crc.update(writeBuffer.array(), HEADER_BYTES, length);
+        writeBuffer.putInt(0, length);
+        writeBuffer.putInt(Integer.BYTES, (int) crc.getValue());
+        writeBuffer.flip();
+        return writeBuffer;
+    }
+
+    private void recordOffset(long offset, String hash) {
+        if (count - first == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        offsets[count - first] = offset;
+        if (2 * (count + 1) > hashSlots.length) rehash(hashSlots.length * 2);
+        insertHash(hashKey(hash), count);
+        count++;
+    }
+
+    private static long hashKey(String hash) {
+        if (hash.length() < 16) return hash.hashCode();
+        try {
+            return Long.parseUnsignedLong(hash, 0, 16, 16);
+        } catch (NumberFormatException e) {
+            return hash.hashCode();
+        }
+    }
+
+    private void insertHash(long key, int index) {
+        int mask = hashSlots.length - 1;
+        int slot = (int) (key ^ (key >>> 32)) & mask;
+        while (hashSlots[slot] != 0) slot = (slot + 1) & mask;
+        hashKeys[slot] = key;
+        hashSlots[slot] = index + 1;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = hashKeys;
+        int[] oldSlots = hashSlots;
+        hashKeys = new long[capacity];
+        hashSlots = new int[capacity];
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] > first) insertHash(oldKeys[i], oldSlots[i] - 1);
+        }
+    }
+
+    /*
+     * Drops every segment whose blocks all lie below index; the segment holding index
+     * and everything after it stay. Returns the number of segments dropped.
+     */
+    public synchronized int compact(int index, Path archive) {
+        int dropped = 0;
+        while (segments.size() > 1 && segments.get(1).baseIndex <= index) {
+            drop(segments.remove(0), archive);
+            dropped++;
+        }
+        if (dropped > 0) rebase(segments.get(0).baseIndex);
+        return dropped;
+    }
+
+    /* Drops every segment and restarts the log at anchor, e.g. when installing a peer's snapshot. */
+    public void reset(Block anchor, Path archive) {
+        synchronized (this) {
+            while (!segments.isEmpty()) drop(segments.remove(0), archive);
+            first = count = anchor.getIndex();
+            hashKeys = new long[2048];
+            hashSlots = new int[2048];
+        }
+        append(anchor);
+    }
+
+    private void drop(Segment segment, Path archive) {
+        try {
+            segment.channel.close();
+            if (archive == null) {
+                Files.delete(segment.path);
+            } else {
+                Files.createDirectories(archive);
+                Files.move(segment.path, archive.resolve(segment.path.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void rebase(int newFirst) {
+        int capacity = Math.max(1024, Integer.highestOneBit(count - newFirst) * 2);
+        offsets = Arrays.copyOfRange(offsets, newFirst - first, newFirst - first + capacity);
+        first = newFirst;
+        rehash(hashSlots.length);
+    }
+
+    public Block read(int index) {
+        ByteBuffer record;
+        synchronized (this) {
+            if (index < first || index >= count) return null;
+            record = recordAt(index);
+        }
+        return MessageCodec.getBlock(record);
+    }
+
+    public synchronized Block read(String hash) {
+        long key = hashKey(hash);
+        int mask = hashSlots.length - 1;
+        for (int slot = (int) (key ^ (key >>> 32)) & mask; hashSlots[slot] != 0; slot = (slot + 1) & mask) {
+            if (hashKeys[slot] != key || hashSlots[slot] - 1 < first) continue;
+            Block block = MessageCodec.getBlock(recordAt(hashSlots[slot] - 1));
+            if (block.getHash().equals(hash)) return block;
+        }
+        return null;
+    }
+
+    private ByteBuffer recordAt(int index) {
+        Segment segment = segmentOf(index);
+        long offset = offsets[index - first];
+        try {
+            if (segment.mapped == null || segment.mapped.limit() < offset + HEADER_BYTES
+                    || segment.mapped.limit() < offset + HEADER_BYTES + segment.mapped.getInt((int) offset)) {
+                segment.mapped = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int length = segment.mapped.getInt((int) offset);
+        return segment.mapped.slice((int) offset + HEADER_BYTES, length);
+    }
+
+    private Segment segmentOf(int index) {
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).baseIndex <= index) lo = mid;
+            else hi = mid - 1;
+        }
+        return segments.get(lo);
+    }
+
+    /*
+     * The fsync runs outside the store lock so reads go on meanwhile. compact() or reset()
+     * may close the channel under it; a rolled segment was forced before the roll and a
+     * reset one is gone with its records, so the force moves on to whatever replaced it.
+     */
+    private void awaitDurable(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) return;
+            while (true) {
+                long target;
+                FileChannel channel;
+                synchronized (this) {
+                    target = writtenSeq;
+                    channel = segments.isEmpty() ? null : segments.get(segments.size() - 1).channel;
+                }
+                if (channel == null) {
+                    syncedSeq = target;
+                    return;
+                }
+                try {
+                    channel.force(false);
+                    syncedSeq = target;
+                    return;
+                } catch (ClosedChannelException e) {
+                    synchronized (this) {
+                        if (!segments.isEmpty() && segments.get(segments.size() - 1).channel == channel) throw e;
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (Segment segment : segments) {
+            try {
+                segment.channel.close();
+            } catch (IOException e) {
+                System.out.println(e);
+            }
+        }
+    }
+}
@@ -1,89 +1,528 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
-public class Blockchain {
-    private final List<Block> chain = new ArrayList<>();
+/*
+ *   -Dsnapshot.compact=<mode>   what happens to segments below a stable snapshot: archive
+ *                               (moved to data/<id>/archive/), delete, or off (default archive)
+ *   -Dchain.replayWindowMillis=<ms>  how far behind a submitter's newest committed transaction
+ *                               another of its transactions may still commit (default 60000)
+ */
+public final class Blockchain {
+    private static final int HOT_BLOCKS = 1024;
+    private static final int SNAPSHOTS_KEPT = 2;
+    private static final String COMPACT = System.getProperty("snapshot.compact", "archive");
+    private static final long REPLAY_WINDOW_MILLIS = Long.getLong("chain.replayWindowMillis", 60_000);
+
+    private final Map<Integer, Block> hotBlocks = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Block> eldest) { return size() > HOT_BLOCKS; }
+    };
+    private volatile Block latest;
     private final String blockProposerId;
     private final PrivateKey thisPrivateKey;
     private final Map<String, PublicKey> validatorPublicKeys;
+    private final Map<String, PublicKey> validatorKeys;
     private final String MODEL;
     private final int faulty ;
+    private final BlockStore store;
+    private final ChainVerifier verifier;
+    private final BlockIndex index = new BlockIndex(this::getBlock, this::getFirstIndex, this::getHeight);
+    private final List<Consumer<Block>> commitListeners = new CopyOnWriteArrayList<>();
+    private final Metrics metrics;
+    private final LongAdder blocksCommitted;
+    private final Histogram appendMicros;
+    private final Path snapshotDir;
+    private final Path archiveDir;
+    private final String validatorsHash;
+    private volatile Snapshot snapshot;
+    private String lineage;
+    private long updates;
+    private final Map<String, Long> clocks = new ConcurrentHashMap<>();
+    private final Map<String, Map<String, Long>> recent = new ConcurrentHashMap<>();
 
     public Blockchain(String blockProposerId, String MODEL, int faulty) {
+        this(blockProposerId, MODEL, faulty, Path.of("data", blockProposerId));
+    }
+
+    public Blockchain(String blockProposerId, String MODEL, int faulty, Path dataDir) {
+        this(blockProposerId, MODEL, faulty, dataDir, Path.of("validators"));
+    }
+
+    public Blockchain(String blockProposerId, String MODEL, int faulty, Path dataDir, Path validatorsDir) {
+        this(blockProposerId, MODEL, faulty, dataDir, validatorsDir, new Metrics(blockProposerId));
+    }
+
+    public Blockchain(String blockProposerId, String MODEL, int faulty, Path dataDir, Path validatorsDir, Metrics metrics) {
         this.MODEL = MODEL;
+        this.metrics = metrics;
+        this.blocksCommitted = metrics.counter("chain_blocks_committed_total");
+        this.appendMicros = metrics.histogram("chain_append_micros");
+        metrics.gauge("chain_height", () -> latest == null ? 0 : getHeight());
         this.blockProposerId = blockProposerId;
-        this.thisPrivateKey = CryptoUtils.loadPrivateKey("validators/" + blockProposerId + "/private.key");
-        this.validatorPublicKeys = CryptoUtils.loadAllPublicKeys("validators");
+        this.thisPrivateKey = CryptoUtils.loadPrivateKey(validatorsDir.resolve(blockProposerId).resolve("private.key").toString());
+        this.validatorPublicKeys = CryptoUtils.loadAllPublicKeys(validatorsDir.toString());
+        this.validatorKeys = new HashMap<>(validatorPublicKeys);
+        validatorKeys.remove("Genesis");
         this.faulty = faulty;
+        this.store = new BlockStore(dataDir);
+        this.snapshotDir = dataDir.resolve("snapshots");
+        this.archiveDir = COMPACT.equals("delete") ? null : dataDir.resolve("archive");
+        this.validatorsHash = hashValidators();
+        final Snapshot stored = loadSnapshot();
 
         Block genesis = new Block(
-            CryptoUtils.loadPrivateKey("validators/Genesis/private.key"),
+            CryptoUtils.loadPrivateKey(validatorsDir.resolve("Genesis").resolve("private.key").toString()),
             MODEL
         );
-        chain.add(genesis);
+        store.recover(block -> {
+            if (latest == null) {
+                if (block.getIndex() == 0 && !block.getHash().equals(genesis.getHash())) {
+                    throw new IllegalStateException("Block store " + dataDir + " was created for a different genesis block");
+                }
+                if (block.getIndex() > 0 && (stored == null || block.getIndex() > stored.getIndex())) {
+                    throw new IllegalStateException("Block store " + dataDir + " starts at block " + block.getIndex() + " and no snapshot covers it");
+                }
+            } else if (!isLinked(latest, block)) {
+                return false;
+            }
+            if (stored != null && block.getIndex() == stored.getIndex() && !block.getHash().equals(stored.getBlockHash())) {
+                throw new IllegalStateException("Block store " + dataDir + " does not match snapshot " + stored.getIndex());
+            }
+            advanceLineage(block, stored);
+            advanceClocks(block, stored);
+            latest = block;
+            return true;
+        });
+        if (latest == null && stored != null) {
+            throw new IllegalStateException("Block store " + dataDir + " is empty but snapshot " + stored.getIndex() + " exists");
+        }
+        if (latest == null) commitBlock(genesis);
+        else cache(latest);
+        if (stored != null && latest.getIndex() < stored.getIndex()) {
+            throw new IllegalStateException("Block store " + dataDir + " ends before snapshot " + stored.getIndex());
+        }
+        this.snapshot = stored;
+
+        this.verifier = new ChainVerifier(this::getBlock, this::isSigned, this::isLinked, dataDir.resolve("verified.checkpoint"));
+        if (stored != null) verifier.setFloor(stored.getIndex());
+        ChainVerifier.Result result = verifier.verify(getHeight());
+        if (!result.valid()) {
+            throw new IllegalStateException("Block store " + dataDir + " failed verification at block " + result.firstInvalid());
+        }
     }
     
     public int getFaulty(){ return faulty; }
 
     public String getId(){ return blockProposerId; }
 
-    public Block forgeBlock(String dataPath) {
-        Block latest = getLatestBlock();
-        int nextRound = latest.getIndex() + 1;
-        String previousHash = latest.getHash();
-        
-        try {
-            return new Block(nextRound, dataPath, MODEL, previousHash, blockProposerId, thisPrivateKey);
-        } catch (Exception e) {
-            System.err.println(e);
-            return null;
+    public Metrics getMetrics() { return metrics; }
+
+    public List<String> getValidators() {
+        List<String> validators = new ArrayList<>(validatorKeys.keySet());
+        Collections.sort(validators);
+        return validators;
+    }
+
+    public Block forgeBlock(List<Transaction> transactions, Block parent) {
+        long timestamp = Math.max(System.currentTimeMillis(), parent.getTimestamp());
+        return Block.forge(parent.getIndex() + 1, timestamp, transactions, MODEL, parent.getHash(), blockProposerId, thisPrivateKey);
+    }
+
+    public Transaction newTransaction(ChunkStore.Manifest manifest) {
+        return Transaction.sign(blockProposerId, manifest, thisPrivateKey);
+    }
+
+    /* Nothing advances unless the block is durable; a store failure is thrown to the caller. */
+    public void commitBlock(Block block) {
+        long start = System.nanoTime();
+        store.append(block);
+        appendMicros.record((System.nanoTime() - start) / 1000);
+        blocksCommitted.increment();
+        advanceLineage(block, null);
+        advanceClocks(block, null);
+        cache(block);
+        latest = block;
+        index.add(block);
+        for (Consumer<Block> listener : commitListeners) listener.accept(block);
+    }
+
+    public void onCommit(Consumer<Block> listener) { commitListeners.add(listener); }
+
+    /* Proposer, model, data hash and time-range queries over the committed blocks. */
+    public BlockIndex.Page query(BlockIndex.Query query, int after, int limit) { return index.query(query, after, limit); }
+
+    public void close() { store.close(); }
+
+    private void cache(Block block) {
+        synchronized (hotBlocks) {
+            hotBlocks.put(block.getIndex(), block);
         }
     }
-    
-    public void commitBlock(Block block) { chain.add(block); }
 
-    public Block getLatestBlock() { return chain.get(chain.size() - 1); }
+    public Block getLatestBlock() { return latest; }
 
-    public boolean isValid() {
-        for (int i = 1; i < chain.size(); i++) {
-            Block curr = chain.get(i);
-            Block prev = chain.get(i - 1);
+    /* The oldest block still in the store; earlier ones were compacted behind a snapshot. */
+    public int getFirstIndex() { return store.getFirstIndex(); }
+
+    private void advanceLineage(Block block, Snapshot stored) {
+        if (block.getIndex() == 0) {
+            lineage = block.getHash();
+            updates = 0;
+        } else if (stored != null && block.getIndex() == stored.getIndex()) {
+            lineage = stored.getLineage();
+            updates = stored.getUpdates();
+        } else if (lineage != null) {
+            lineage = Snapshot.nextLineage(lineage, block);
+            updates += block.getTransactions().size();
+        }
+    }
 
-            String recalculatedHash = CryptoUtils.calculateHash(curr.getPayload());
-            if (!curr.getHash().equals(recalculatedHash)) return false;
+    /*
+     * Keeps, per submitter, the transactions committed within the replay window of its newest
+     * one. The newest is always kept, so the clock is the largest timestamp left in the window.
+     */
+    private void advanceClocks(Block block, Snapshot stored) {
+        if (stored != null && block.getIndex() == stored.getIndex()) {
+            restoreClocks(stored);
+            return;
+        }
+        Set<String> submitters = new HashSet<>();
+        for (Transaction tx : block.getTransactions()) {
+            recent.computeIfAbsent(tx.getSubmitterId(), _ -> new ConcurrentHashMap<>()).put(tx.getHash(), tx.getTimestamp());
+            clocks.merge(tx.getSubmitterId(), tx.getTimestamp(), Math::max);
+            submitters.add(tx.getSubmitterId());
+        }
+        for (String submitter : submitters) {
+            long floor = replayFloor(submitter);
+            recent.get(submitter).values().removeIf(timestamp -> timestamp <= floor);
+        }
+    }
 
-            if (!curr.getPreviousHash().equals(prev.getHash())) return false;
+    private void restoreClocks(Snapshot stored) {
+        recent.clear();
+        clocks.clear();
+        stored.getRecent().forEach((submitter, txs) -> {
+            if (txs.isEmpty()) return;
+            recent.put(submitter, new ConcurrentHashMap<>(txs));
+            clocks.put(submitter, Collections.max(txs.values()));
+        });
+    }
 
-            if (!curr.getModelHash().equals(prev.getModelHash())) return false;
+    /*
+     * A submitter's transaction must be stamped after this, its newest committed timestamp
+     * less the replay window. Anything later is refused only if it committed already, so
+     * two of its transactions that commit out of order are both kept.
+     */
+    public long replayFloor(String submitterId) {
+        Long clock = clocks.get(submitterId);
+        return clock == null ? Long.MIN_VALUE : clock - REPLAY_WINDOW_MILLIS;
+    }
 
-            PublicKey proposerKey = validatorPublicKeys.get(curr.getBlockProposerId());
-            if (proposerKey == null || !CryptoUtils.verifySignature(curr.getHash(), curr.getSignature(), proposerKey)) {
-                return false;
-            }
+    public boolean isCommitted(Transaction tx) {
+        Map<String, Long> txs = recent.get(tx.getSubmitterId());
+        return txs != null && txs.containsKey(tx.getHash());
+    }
+
+    /*
+     * True when no transaction is a replay: each is stamped after its submitter's replay floor,
+     * raised by the clocks of earlier uncommitted blocks (pending) as their commit will raise
+     * it, and appears neither on the committed chain within the window nor twice in this block.
+     */
+    public boolean isFresh(Block block, Map<String, Long> pending) {
+        Set<String> seen = new HashSet<>();
+        for (Transaction tx : block.getTransactions()) {
+            Long ahead = pending.get(tx.getSubmitterId());
+            long floor = Math.max(replayFloor(tx.getSubmitterId()), ahead == null ? Long.MIN_VALUE : ahead - REPLAY_WINDOW_MILLIS);
+            if (tx.getTimestamp() <= floor || isCommitted(tx) || !seen.add(tx.getHash())) return false;
         }
         return true;
     }
 
+    private String hashValidators() {
+        StringBuilder keys = new StringBuilder();
+        for (String id : new TreeSet<>(validatorPublicKeys.keySet())) {
+            keys.append(id).append(':').append(Base64.getEncoder().encodeToString(validatorPublicKeys.get(id).getEncoded())).append(';');
+        }
+        return CryptoUtils.calculateHash(keys.toString());
+    }
+
+    /* The newest stable snapshot, or null before the first one. */
+    public Snapshot getSnapshot() { return snapshot; }
+
+    /* An unsigned snapshot of the chain as of the latest block; call it from a commit listener. */
+    public Snapshot currentSnapshot() {
+        Block block = latest;
+        return new Snapshot(block.getIndex(), block.getHash(), block.getModelHash(), lineage, updates, recent,
+                            getValidators(), validatorsHash, faulty, Map.of());
+    }
+
+    public String signSnapshot(Snapshot snapshot) {
+        return CryptoUtils.signData(checkpointPayload(snapshot.getIndex(), snapshot.digest()), thisPrivateKey);
+    }
+
+    public boolean isValidCheckpoint(String signerId, int index, String digest, String signature) {
+        PublicKey signerKey = signerId == null ? null : validatorKeys.get(signerId);
+        return signerKey != null && digest != null && signature != null
+            && CryptoUtils.verifySignature(checkpointPayload(index, digest), signature, signerKey);
+    }
+
+    public boolean isValidSnapshot(Snapshot snapshot) {
+        if (!snapshot.getValidatorsHash().equals(validatorsHash)) return false;
+        String payload = checkpointPayload(snapshot.getIndex(), snapshot.digest());
+        List<CryptoUtils.Signed> signatures = new ArrayList<>(snapshot.getSignatures().size());
+        for (Map.Entry<String, String> signature : snapshot.getSignatures().entrySet()) {
+            PublicKey signerKey = validatorKeys.get(signature.getKey());
+            if (signerKey != null && signature.getValue() != null) {
+                signatures.add(new CryptoUtils.Signed(signerKey, payload, signature.getValue()));
+            }
+        }
+        int valid = 0;
+        for (boolean verified : CryptoUtils.verifyAll(signatures)) {
+            if (verified) valid++;
+        }
+        return valid >= 2 * faulty + 1;
+    }
+
+    /* Records a stable snapshot of this chain and compacts the store below it. */
+    public void saveSnapshot(Snapshot stable) {
+        writeSnapshot(stable);
+        snapshot = stable;
+        verifier.setFloor(stable.getIndex());
+        if (COMPACT.equals("off")) return;
+        int dropped = store.compact(stable.getIndex(), archiveDir);
+        if (dropped > 0) System.out.println("Compacted " + dropped + " segment(s) below snapshot " + stable.getIndex());
+    }
+
+    /* Replaces this chain with a peer's stable snapshot and its certified block. */
+    public void installSnapshot(Snapshot stable, Block anchor) {
+        writeSnapshot(stable);
+        store.reset(anchor, archiveDir);
+        synchronized (hotBlocks) {
+            hotBlocks.clear();
+        }
+        lineage = stable.getLineage();
+        updates = stable.getUpdates();
+        restoreClocks(stable);
+        snapshot = stable;
+        cache(anchor);
+        latest = anchor;
+        index.add(anchor);
+        verifier.setFloor(anchor.getIndex());
+    }
+
+    private void writeSnapshot(Snapshot stable) {
+        ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+        while (true) {
+            try {
+                MessageCodec.putSnapshot(buffer, stable);
+                break;
+            } catch (BufferOverflowException e) {
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+            }
+        }
+        try {
+            Files.createDirectories(snapshotDir);
+            Path file = snapshotDir.resolve(String.format("%012d.snapshot", stable.getIndex()));
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.write(tmp, Arrays.copyOf(buffer.array(), buffer.position()));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            List<Path> files = snapshotFiles();
+            for (Path old : files.subList(Math.min(SNAPSHOTS_KEPT, files.size()), files.size())) Files.delete(old);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /* The newest snapshot on disk that a quorum of the current validators signed. */
+    private Snapshot loadSnapshot() {
+        for (Path file : snapshotFiles()) {
+            try {
+                Snapshot stored = MessageCodec.getSnapshot(ByteBuffer.wrap(Files.readAllBytes(file)));
+                if (isValidSnapshot(stored)) return stored;
+                System.out.println("Ignoring snapshot " + file + ": not certified by the current validators");
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Ignoring snapshot " + file + ": " + e);
+            }
+        }
+        return null;
+    }
+
+    private List<Path> snapshotFiles() {
+        if (!Files.isDirectory(snapshotDir)) return List.of();
+        try (Stream<Path> files = Files.list(snapshotDir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".snapshot"))
+                        .sorted(Comparator.reverseOrder()).toList();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int getHeight() { return latest.getIndex() + 1; }
+
+    public Block getBlock(int index) {
+        synchronized (hotBlocks) {
+            Block block = hotBlocks.get(index);
+            if (block != null) return block;
+        }
+        return store.read(index);
+    }
+
+    public Block getBlock(String hash) { return store.read(hash); }
+
+    public boolean isValid() {
+        ChainVerifier.Result result = verifier.verify(getHeight());
+        System.out.printf("Verified %d new blocks in %.1f ms (%.0f blocks/s)%n",
+                          result.blocksVerified(), result.nanos() / 1e6, result.blocksPerSecond());
+        return result.valid();
+    }
+
     public boolean isValid(Block newBlock) {
         Block latest = getLatestBlock();
+        return isLinked(latest, newBlock) && isSigned(newBlock) && isFresh(newBlock, Map.of());
+    }
 
-        if (!newBlock.getPreviousHash().equals(latest.getHash())) return false;
+    /* A block is never stamped before its parent, so timestamps only grow along the chain and BlockIndex can bisect them. */
+    public boolean isLinked(Block prev, Block curr) {
+        if (curr.getIndex() != prev.getIndex() + 1) return false;
 
-        if (!newBlock.getModelHash().equals(latest.getModelHash())) return false;
+        if (!curr.getPreviousHash().equals(prev.getHash())) return false;
 
-        String recalculatedHash = CryptoUtils.calculateHash(newBlock.getPayload());
-        if (!newBlock.getHash().equals(recalculatedHash)) return false;
+        if (curr.getTimestamp() < prev.getTimestamp()) return false;
 
-        PublicKey proposerKey = validatorPublicKeys.get(newBlock.getBlockProposerId());
-        if (proposerKey == null || !CryptoUtils.verifySignature(newBlock.getHash(), newBlock.getSignature(), proposerKey)) {
-            return false;
-        }
+        return curr.getModelHash().equals(prev.getModelHash());
+    }
+
+    /*
+     * Bounds a new proposal's timestamp by this node's clock. Without it a proposer could
+     * stamp a block far ahead, and since timestamps never decrease along the chain, every
+     * later honest block would be refused until the clock caught up. Committed blocks are
+     * not held to it, so a clock that steps back cannot invalidate the stored chain.
+     */
+    public boolean isTimely(Block block, long maxSkewMillis) {
+        return block.getTimestamp() <= System.currentTimeMillis() + maxSkewMillis;
+    }
+
+    public boolean isSigned(Block block) {
+        if (!CryptoUtils.isSha256Hex(block.getHash())
+                || !MessageDigest.isEqual(CryptoUtils.sha256(block.getPayloadBytes()), block.getHashBytes())) return false;
 
+        PublicKey proposerKey = validatorPublicKeys.get(block.getBlockProposerId());
+        if (proposerKey == null || block.getSignatureScheme() != SignatureScheme.of(proposerKey)) return false;
+
+        List<Transaction> transactions = block.getTransactions();
+        if (transactions.isEmpty()) return CryptoUtils.verifySignature(block.getHash(), block.getSignature(), proposerKey);
+        if (!block.getDataHash().equals(Transaction.merkleRoot(transactions))) return false;
+        List<CryptoUtils.Signed> signatures = new ArrayList<>(transactions.size() + 1);
+        signatures.add(new CryptoUtils.Signed(proposerKey, block.getHash(), block.getSignature()));
+        for (Transaction tx : transactions) {
+            PublicKey submitterKey = validatorKeys.get(tx.getSubmitterId());
+            if (submitterKey == null || !tx.getManifest().isWellFormed()
+                    || !tx.getHash().equals(CryptoUtils.calculateHash(tx.getPayload()))) return false;
+            signatures.add(new CryptoUtils.Signed(submitterKey, tx.getHash(), tx.getSignature()));
+        }
+        for (boolean verified : CryptoUtils.verifyAll(signatures)) {
+            if (!verified) return false;
+        }
         return true;
     }
 
+    /* Also refuses a transaction its submitter has already committed, or stamped before its replay floor. */
+    public boolean isSigned(Transaction tx) {
+        if (tx.getTimestamp() <= replayFloor(tx.getSubmitterId()) || isCommitted(tx)) return false;
+        if (!tx.getManifest().isWellFormed() || !tx.getHash().equals(CryptoUtils.calculateHash(tx.getPayload()))) return false;
+        PublicKey submitterKey = validatorKeys.get(tx.getSubmitterId());
+        return submitterKey != null && CryptoUtils.verifySignature(tx.getHash(), tx.getSignature(), submitterKey);
+    }
+
+    public String signVote(int round, int view, String blockHash) {
+        return CryptoUtils.signData(votePayload(round, view, blockHash), thisPrivateKey);
+    }
+
+    public boolean isValidVote(Message vote) {
+        return isSignedBy(vote, votePayload(vote.getRound(), vote.getView(), vote.getBlockId()));
+    }
+
+    public boolean isValidCertificate(QuorumCertificate certificate) {
+        return isQuorum(certificate, votePayload(certificate.getRound(), certificate.getView(), certificate.getBlockHash()));
+    }
+
+    public String signPrepare(int round, int view, String blockHash) {
+        return CryptoUtils.signData(preparePayload(round, view, blockHash), thisPrivateKey);
+    }
+
+    public boolean isValidPrepare(Message prepare) {
+        return isSignedBy(prepare, preparePayload(prepare.getRound(), prepare.getView(), prepare.getBlockId()));
+    }
+
+    /* 2f+1 PREPAREs for one block in one view: no other block can be prepared in that view. */
+    public boolean isValidPrepareCertificate(QuorumCertificate certificate) {
+        return isQuorum(certificate, preparePayload(certificate.getRound(), certificate.getView(), certificate.getBlockHash()));
+    }
+
+    /* Every node holds the Genesis key, so only the validators' own keys count toward a quorum. */
+    private boolean isSignedBy(Message msg, String payload) {
+        PublicKey senderKey = msg.getSenderId() == null ? null : validatorKeys.get(msg.getSenderId());
+        return senderKey != null && msg.getSignature() != null
+            && CryptoUtils.verifySignature(payload, msg.getSignature(), senderKey);
+    }
+
+    /* Signers are distinct map keys; only validators count, so the Genesis key cannot pad a quorum. */
+    private boolean isQuorum(QuorumCertificate certificate, String payload) {
+        List<CryptoUtils.Signed> votes = new ArrayList<>(certificate.getSignatures().size());
+        for (Map.Entry<String, String> vote : certificate.getSignatures().entrySet()) {
+            PublicKey voterKey = validatorKeys.get(vote.getKey());
+            if (voterKey != null && vote.getValue() != null) votes.add(new CryptoUtils.Signed(voterKey, payload, vote.getValue()));
+        }
+        if (votes.size() < 2 * faulty + 1) return false;
+        int valid = 0;
+        for (boolean verified : CryptoUtils.verifyAll(votes)) {
+            if (verified) valid++;
+        }
+        return valid >= 2 * faulty + 1;
+    }
+
+    public String signViewChange(int round, int view) {
+        return CryptoUtils.signData(viewChangePayload(round, view), thisPrivateKey);
+    }
+
+    public boolean isValidViewChange(Message viewChange) {
+        return isSignedBy(viewChange, viewChangePayload(viewChange.getRound(), viewChange.getView()));
+    }
+
+    public String signChunkRequest(String recipientId, int nonce, List<String> chunkHashes) {
+        return CryptoUtils.signData(chunkRequestPayload(blockProposerId, recipientId, nonce, chunkHashes), thisPrivateKey);
+    }
+
+    /* A CHUNK_REQUEST that its claimed sender signed for this recipient, so replies go to whoever asked. */
+    public boolean isValidChunkRequest(Message request, String recipientId) {
+        return isSignedBy(request, chunkRequestPayload(request.getSenderId(), recipientId, request.getRound(), request.getChunkHashes()));
+    }
+
+    private static String votePayload(int round, int view, String blockHash) { return "VOTE" + round + ":" + view + ":" + blockHash; }
+
+    private static String preparePayload(int round, int view, String blockHash) { return "PREPARE" + round + ":" + view + ":" + blockHash; }
+
+    private static String viewChangePayload(int round, int view) { return "VIEW" + round + ":" + view; }
+
+    private static String chunkRequestPayload(String senderId, String recipientId, int nonce, List<String> chunkHashes) {
+        return "CHUNKS" + senderId + ">" + recipientId + ":" + nonce + ":" + String.join(",", chunkHashes);
+    }
+
+    private static String checkpointPayload(int index, String digest) { return "CHECKPOINT" + index + ":" + digest; }
+
     public void printChain() {
-        for (Block block : chain) {
+        for (int i = getFirstIndex(); i < getHeight(); i++) {
+            Block block = getBlock(i);
             System.out.println("Index: " + block.getIndex());
             System.out.println("Timestamp: " + block.getTimestamp());
             System.out.println("Data Hash: " + block.getDataHash());
@@ -92,6 +531,8 @@ public class Blockchain {
             System.out.println("Hash: " + block.getHash());
             System.out.println("Previous Hash: " + block.getPreviousHash());
             System.out.println("Signature: " + block.getSignature());
+            System.out.println("Transactions: " + block.getTransactions().size());
+            if (block.getCertificate() != null) System.out.println("Certificate: " + block.getCertificate().getSignatures().keySet());
             System.out.println("-----");
         }
     }
@@ -0,0 +1,146 @@
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.BiPredicate;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+
+/*
+ * Verifies a chain in windows. Within a window every block's hash and signature are
+ * checked in parallel on the fork-join pool; the previousHash/modelHash linkage is then
+ * checked in a separate sequential pass over the already-decoded blocks. The highest
+ * verified height is persisted so later audits only cover newly committed blocks. A
+ * stable snapshot raises the floor: its block is trusted and audits start there.
+ */
+public class ChainVerifier {
+    private static final int WINDOW = 16384;
+    private static final int CHUNK = 256;
+
+    private final IntFunction<Block> blocks;
+    private final Predicate<Block> blockCheck;
+    private final BiPredicate<Block, Block> linkCheck;
+    private final Path checkpointFile;
+    private final ForkJoinPool pool = ForkJoinPool.commonPool();
+
+    private int floor;
+    private int verifiedUpTo;
+    private String verifiedHash;
+
+    public record Result(boolean valid, int firstInvalid, int blocksVerified, long nanos) {
+        public double blocksPerSecond() { return nanos == 0 ? 0 : blocksVerified / (nanos / 1e9); }
+    }
+
+    public ChainVerifier(IntFunction<Block> blocks, Predicate<Block> blockCheck,
+                         BiPredicate<Block, Block> linkCheck, Path checkpointFile) {
+        this.blocks = blocks;
+        this.blockCheck = blockCheck;
+        this.linkCheck = linkCheck;
+        this.checkpointFile = checkpointFile;
+        loadCheckpoint();
+    }
+
+    public synchronized int getVerifiedUpTo() { return verifiedUpTo; }
+
+    public synchronized void setFloor(int index) { floor = index; }
+
+    public synchronized Result verify(int height) {
+        long start = System.nanoTime();
+        Block anchor = blocks.apply(verifiedUpTo);
+        if (verifiedUpTo < floor || verifiedUpTo >= height || anchor == null || !anchor.getHash().equals(verifiedHash)) {
+            verifiedUpTo = floor;
+            anchor = blocks.apply(floor);
+            verifiedHash = anchor.getHash();
+        }
+
+        int from = verifiedUpTo + 1;
+        int total = height - from;
+        Block prev = anchor;
+        for (int lo = from; lo < height; lo += WINDOW) {
+            int hi = Math.min(height, lo + WINDOW);
+            Block[] window = new Block[hi - lo];
+            int firstInvalid = pool.invoke(new VerifyTask(window, lo, 0, window.length));
+
+            for (int i = 0; i < window.length; i++) {
+                int index = lo + i;
+                if (firstInvalid >= 0 && index >= firstInvalid) break;
+                if (!linkCheck.test(prev, window[i])) {
+                    firstInvalid = index;
+                    break;
+                }
+                prev = window[i];
+            }
+            if (firstInvalid >= 0) {
+                saveCheckpoint();
+                return new Result(false, firstInvalid, firstInvalid - from, System.nanoTime() - start);
+            }
+
+            verifiedUpTo = hi - 1;
+            verifiedHash = prev.getHash();
+            if (total > WINDOW) {
+                long elapsed = System.nanoTime() - start;
+                System.out.printf("Verified %d/%d blocks (%.0f blocks/s)%n", hi - from, total, (hi - from) / (elapsed / 1e9));
+            }
+        }
+        saveCheckpoint();
+        return new Result(true, -1, Math.max(0, total), System.nanoTime() - start);
+    }
+
+    private final class VerifyTask extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final Block[] window;
+        private final int base;
+        private final int lo;
+        private final int hi;
+
+        VerifyTask(Block[] window, int base, int lo, int hi) {
+            this.window = window;
+            this.base = base;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (hi - lo > CHUNK) {
+                int mid = (lo + hi) >>> 1;
+                VerifyTask left = new VerifyTask(window, base, lo, mid);
+                left.fork();
+                int right = new VerifyTask(window, base, mid, hi).compute();
+                int l = left.join();
+                return l >= 0 ? l : right;
+            }
+            for (int i = lo; i < hi; i++) {
+                Block block = blocks.apply(base + i);
+                window[i] = block;
+                if (block == null || !blockCheck.test(block)) return base + i;
+            }
+            return -1;
+        }
+    }
+
+    private void loadCheckpoint() {
+        try {
+            if (checkpointFile == null || !Files.exists(checkpointFile)) return;
+            String[] parts = Files.readString(checkpointFile).trim().split(" ");
+            verifiedUpTo = Integer.parseInt(parts[0]);
+            verifiedHash = parts[1];
+        } catch (IOException | RuntimeException e) {
+            System.out.println(e);
+            verifiedUpTo = 0;
+            verifiedHash = null;
+        }
+    }
+
+    private void saveCheckpoint() {
+        if (checkpointFile == null || verifiedHash == null) return;
+        try {
+            Path tmp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+            Files.writeString(tmp, verifiedUpTo + " " + verifiedHash);
+            Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+
+/*
+ * Stable checkpoints in the PBFT style. Every INTERVAL blocks each validator takes the
+ * Snapshot of its chain at that block, signs its digest and broadcasts CHECKPOINT. When
+ * 2f+1 validators have signed the digest this node computed, the snapshot is stable: it
+ * is written to data/<id>/snapshots/, restarts boot from it, and the block store is
+ * compacted below it. Signatures for checkpoints this node has not reached yet are
+ * verified on arrival and kept until it does, up to a few intervals ahead, so a forged
+ * copy under a validator's id cannot take the place of its real signature.
+ *
+ *   -Dsnapshot.interval=<k>   blocks between checkpoints, 0 = off (default 1000)
+ */
+public class Checkpointer {
+    private static final int INTERVAL = Integer.getInteger("snapshot.interval", 1000);
+    private static final int LOOKAHEAD = 4;
+
+    private final String myId;
+    private final Blockchain blockchain;
+    private final Transport network;
+    private final Executor executor;
+    private final int quorum;
+    private final NavigableMap<Integer, Snapshot> local = new TreeMap<>();
+    private final NavigableMap<Integer, Map<String, Message>> received = new TreeMap<>();
+    private final Map<Integer, Map<String, String>> verified = new HashMap<>();
+
+    public Checkpointer(String myId, Blockchain blockchain, Transport network, Executor executor) {
+        this.myId = myId;
+        this.blockchain = blockchain;
+        this.network = network;
+        this.executor = executor;
+        this.quorum = 2 * blockchain.getFaulty() + 1;
+        if (INTERVAL > 0) blockchain.onCommit(this::onCommit);
+    }
+
+    private void onCommit(Block block) {
+        if (block.getIndex() == 0 || block.getIndex() % INTERVAL != 0) return;
+        final Snapshot snapshot = blockchain.currentSnapshot();
+        executor.execute(() -> {
+            if (snapshot.getIndex() <= stable()) return;
+            final String digest = snapshot.digest();
+            final Message checkpoint = Message.checkpoint(myId, snapshot.getIndex(), digest, blockchain.signSnapshot(snapshot));
+            network.broadcastMessage(checkpoint);
+            local.put(snapshot.getIndex(), snapshot);
+            verified.computeIfAbsent(snapshot.getIndex(), _ -> new LinkedHashMap<>()).put(myId, checkpoint.getSignature());
+            tryStabilize(snapshot.getIndex());
+        });
+    }
+
+    public void onCheckpoint(Message msg) {
+        executor.execute(() -> {
+            final int index = msg.getRound();
+            if (INTERVAL <= 0 || index <= stable() || index % INTERVAL != 0) return;
+            if (index > blockchain.getHeight() + LOOKAHEAD * INTERVAL) return;
+            if (!blockchain.isValidCheckpoint(msg.getSenderId(), index, msg.getBlockId(), msg.getSignature())) return;
+            received.computeIfAbsent(index, _ -> new HashMap<>()).putIfAbsent(msg.getSenderId(), msg);
+            tryStabilize(index);
+        });
+    }
+
+    /* The index of the newest stable snapshot, whether certified here or installed from a peer. */
+    private int stable() {
+        Snapshot snapshot = blockchain.getSnapshot();
+        return snapshot == null ? 0 : snapshot.getIndex();
+    }
+
+    private void tryStabilize(int index) {
+        final Snapshot snapshot = local.get(index);
+        final Map<String, Message> pending = received.remove(index);
+        if (snapshot == null) {
+            if (pending != null) received.put(index, pending);
+            return;
+        }
+        final Map<String, String> signatures = verified.computeIfAbsent(index, _ -> new LinkedHashMap<>());
+        if (pending != null) {
+            final String digest = snapshot.digest();
+            for (Message msg : pending.values()) {
+                if (!signatures.containsKey(msg.getSenderId()) && digest.equals(msg.getBlockId())) {
+                    signatures.put(msg.getSenderId(), msg.getSignature());
+                }
+            }
+        }
+        if (signatures.size() < quorum) return;
+
+        blockchain.saveSnapshot(snapshot.withSignatures(signatures));
+        local.headMap(index, true).clear();
+        received.headMap(index, true).clear();
+        verified.keySet().removeIf(i -> i <= index);
+        System.out.println("Snapshot " + index + " is stable (" + signatures.size() + " signatures)");
+    }
+}
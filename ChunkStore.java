@@ -0,0 +1,111 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Content-addressed store for model payload chunks. Files are cut into
+ * FileHasher.CHUNK_BYTES chunks and each chunk is stored once, under the hex SHA-256
+ * of its contents, so consecutive model versions share every unchanged chunk. A
+ * Manifest lists a file's chunk hashes in order; its root is the same "merkle:" hash
+ * FileHasher produces in TREE mode.
+ */
+public class ChunkStore {
+    private final Path dir;
+
+    public record Manifest(long size, List<String> chunks) implements Serializable {
+        /* Every chunk but the last is full, the last holds the rest (an empty file is one empty chunk). */
+        public boolean isWellFormed() {
+            int n = chunks.size();
+            if (n == 0 || size < 0 || size > (long) n * FileHasher.CHUNK_BYTES) return false;
+            if (n > 1 && size <= (long) (n - 1) * FileHasher.CHUNK_BYTES) return false;
+            return chunks.stream().allMatch(CryptoUtils::isSha256Hex);
+        }
+
+        public String root() {
+            byte[][] leaves = new byte[chunks.size()][];
+            for (int i = 0; i < leaves.length; i++) leaves[i] = CryptoUtils.fromHex(chunks.get(i));
+            return FileHasher.TREE_PREFIX + CryptoUtils.toHex(FileHasher.merkleRoot(leaves));
+        }
+    }
+
+    public ChunkStore(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /* Hashes come from peers, so anything but a hex SHA-256 is refused before it becomes a path. */
+    public boolean has(String hash) { return CryptoUtils.isSha256Hex(hash) && Files.exists(dir.resolve(hash)); }
+
+    public List<String> missing(Manifest manifest) {
+        List<String> missing = new ArrayList<>();
+        for (String hash : manifest.chunks()) {
+            if (!has(hash) && !missing.contains(hash)) missing.add(hash);
+        }
+        return missing;
+    }
+
+    public byte[] get(String hash) {
+        if (!CryptoUtils.isSha256Hex(hash)) return null;
+        try {
+            return Files.readAllBytes(dir.resolve(hash));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public boolean put(String hash, byte[] data) {
+        if (!CryptoUtils.isSha256Hex(hash)) return false;
+        if (!CryptoUtils.toHex(CryptoUtils.sha256().digest(data)).equals(hash)) return false;
+        if (has(hash)) return true;
+        try {
+            Path tmp = Files.createTempFile(dir, hash, ".tmp");
+            Files.write(tmp, data);
+            Files.move(tmp, dir.resolve(hash), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (IOException e) {
+            System.out.println(e);
+            return false;
+        }
+    }
+
+    public Manifest ingest(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            byte[][] digests = FileHasher.chunkDigests(channel, size);
+            List<String> chunks = new ArrayList<>(digests.length);
+            for (int i = 0; i < digests.length; i++) {
+                String hash = CryptoUtils.toHex(digests[i]);
+                chunks.add(hash);
+                if (has(hash)) continue;
+                long position = (long) i * FileHasher.CHUNK_BYTES;
+                ByteBuffer chunk = ByteBuffer.allocate((int) Math.max(0, Math.min(FileHasher.CHUNK_BYTES, size - position)));
+                while (chunk.hasRemaining() && channel.read(chunk, position + chunk.position()) >= 0) { }
+                put(hash, chunk.array());
+            }
+            return new Manifest(size, chunks);
+        }
+    }
+
+    public void materialise(Manifest manifest, Path target) throws IOException {
+        long written = 0;
+        try (OutputStream out = Files.newOutputStream(target)) {
+            for (String hash : manifest.chunks()) {
+                byte[] chunk = get(hash);
+                if (chunk == null) throw new IOException("Missing chunk " + hash);
+                out.write(chunk);
+                written += chunk.length;
+            }
+        }
+        if (written != manifest.size()) throw new IOException("Chunks hold " + written + " bytes, manifest says " + manifest.size());
+    }
+}
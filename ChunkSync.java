@@ -0,0 +1,115 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+ * Moves model chunks between nodes. Every transaction carries the manifest of its data
+ * file; receivers ask the submitter only for chunks missing from their ChunkStore, so the
+ * bytes sent per round scale with what changed since the previous model. Requests are
+ * signed for the node they ask and answered once, at most MAX_REQUEST_CHUNKS at a time,
+ * and only chunks this node asked for are stored.
+ */
+public class ChunkSync {
+    private static final long REQUEST_RETRY_MILLIS = 30_000L;
+    private static final long SEND_WAIT_MILLIS = 2000L;
+    private static final int MAX_REQUEST_CHUNKS = 64;
+    private static final int ANSWERED_HISTORY = 4096;
+
+    private final String myId;
+    private final Blockchain blockchain;
+    private final ChunkStore store;
+    private final Transport network;
+    private final Executor sender;
+    private final Map<String, Long> requested = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> answered = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) { return size() > ANSWERED_HISTORY; }
+    };
+    private volatile long lastExpiry = System.currentTimeMillis();
+
+    public ChunkSync(String myId, Blockchain blockchain, ChunkStore store, Transport network, Executor sender) {
+        this.myId = myId;
+        this.blockchain = blockchain;
+        this.sender = sender;
+        this.store = store;
+        this.network = network;
+    }
+
+    public ChunkStore getStore() { return store; }
+
+    public void onProposal(Message msg) {
+        for (Transaction tx : msg.getBlock().getTransactions()) onTransaction(tx);
+    }
+
+    public void onTransaction(Transaction tx) {
+        if (tx.getSubmitterId().equals(myId)) return;
+        if (!tx.getManifest().isWellFormed()) {
+            System.out.println("Rejected malformed manifest from " + tx.getSubmitterId());
+            return;
+        }
+        long now = System.currentTimeMillis();
+        expireRequests(now);
+        List<String> missing = store.missing(tx.getManifest());
+        missing.removeIf(hash -> {
+            Long since = requested.putIfAbsent(hash, now);
+            if (since == null || now - since > REQUEST_RETRY_MILLIS) {
+                requested.put(hash, now);
+                return false;
+            }
+            return true;
+        });
+        if (!missing.isEmpty()) {
+            System.out.println("Fetching " + missing.size() + "/" + tx.getManifest().chunks().size() + " chunks from " + tx.getSubmitterId());
+            for (int from = 0; from < missing.size(); from += MAX_REQUEST_CHUNKS) {
+                List<String> hashes = List.copyOf(missing.subList(from, Math.min(missing.size(), from + MAX_REQUEST_CHUNKS)));
+                int nonce = ThreadLocalRandom.current().nextInt();
+                String signature = blockchain.signChunkRequest(tx.getSubmitterId(), nonce, hashes);
+                network.sendMessage(tx.getSubmitterId(), Message.chunkRequest(myId, nonce, hashes, signature));
+            }
+        }
+    }
+
+    public void onChunkRequest(Message msg) {
+        sender.execute(() -> {
+            if (msg.getChunkHashes().size() > MAX_REQUEST_CHUNKS || !blockchain.isValidChunkRequest(msg, myId)) {
+                System.out.println("Rejected chunk request from " + msg.getSenderId());
+                return;
+            }
+            synchronized (answered) {
+                if (answered.put(msg.getSignature(), Boolean.TRUE) != null) return;
+            }
+            for (String hash : msg.getChunkHashes()) {
+                if (!CryptoUtils.isSha256Hex(hash)) continue;
+                byte[] data = store.get(hash);
+                if (data != null && !network.sendMessage(msg.getSenderId(), Message.chunkData(myId, hash, data), SEND_WAIT_MILLIS)) return;
+            }
+        });
+    }
+
+    public void onChunkData(Message msg) {
+        String hash = msg.getChunkHashes().get(0);
+        if (!CryptoUtils.isSha256Hex(hash)) {
+            System.out.println("Rejected chunk with a malformed hash from " + msg.getSenderId());
+            return;
+        }
+        if (!requested.containsKey(hash)) {
+            System.out.println("Rejected unrequested chunk " + hash + " from " + msg.getSenderId());
+            return;
+        }
+        if (!store.put(hash, msg.getPayload())) {
+            System.out.println("Rejected chunk " + hash + " from " + msg.getSenderId());
+            return;
+        }
+        requested.remove(hash);
+    }
+
+    /* Requests that were never answered are forgotten once they could be retried anyway. */
+    private void expireRequests(long now) {
+        if (now - lastExpiry < REQUEST_RETRY_MILLIS) return;
+        lastExpiry = now;
+        requested.values().removeIf(since -> now - since > REQUEST_RETRY_MILLIS);
+    }
+}
@@ -1,44 +1,104 @@
-import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.security.*;
 import java.security.spec.*;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
 
 public class CryptoUtils {
+    private static final int VERIFY_CACHE_SIZE = 4096;
+    private static final int VERIFY_CACHE_STRIPES = 16;
+    private static final int PARALLEL_BATCH = 8;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final byte[] HEX_VALUES = new byte[128];
 
-    public static String calculateHash(String input) {
+    static {
+        Arrays.fill(HEX_VALUES, (byte) -1);
+        for (int i = 0; i < 16; i++) {
+            HEX_VALUES[HEX_DIGITS[i]] = (byte) i;
+            HEX_VALUES[Character.toUpperCase(HEX_DIGITS[i])] = (byte) i;
+        }
+    }
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> newInstance(() -> MessageDigest.getInstance("SHA-256")));
+
+    /* One signature to check: data signed by the holder of publicKey. */
+    public record Signed(PublicKey publicKey, String data, String signature) {}
+
+    /* Striped so parallel verifications do not queue on one lock; each stripe is a small LRU. */
+    private static final List<Map<Signed, Boolean>> verifyCache = IntStream.range(0, VERIFY_CACHE_STRIPES)
+        .mapToObj(i -> lru(VERIFY_CACHE_SIZE / VERIFY_CACHE_STRIPES)).toList();
+    private static final LongAdder verifyCacheHits = new LongAdder();
+    private static final LongAdder verifyCacheMisses = new LongAdder();
+
+    private interface Factory<T> { T create() throws GeneralSecurityException; }
+
+    private static <T> T newInstance(Factory<T> factory) {
         try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hashBytes = digest.digest(input.getBytes("UTF-8"));
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hashBytes) hexString.append(String.format("%02x", b));
-            return hexString.toString();
-        } catch (Exception e) {
+            return factory.create();
+        } catch (GeneralSecurityException e) {
             throw new RuntimeException(e);
         }
     }
 
+    public static long getVerifyCacheHits() { return verifyCacheHits.sum(); }
+
+    public static long getVerifyCacheMisses() { return verifyCacheMisses.sum(); }
+
+    static MessageDigest sha256() {
+        MessageDigest digest = SHA256.get();
+        digest.reset();
+        return digest;
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(bytes[i] >>> 4) & 0xF];
+            hex[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    public static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) ((hexValue(hex.charAt(2 * i)) << 4) | hexValue(hex.charAt(2 * i + 1)));
+        }
+        return bytes;
+    }
+
+    static char hexDigit(int nibble) { return HEX_DIGITS[nibble & 0xF]; }
+
+    /* 0-15 for a hex digit, -1 for anything else. */
+    static int hexValue(char c) { return c < 128 ? HEX_VALUES[c] : -1; }
+
+    /* True for exactly what calculateHash produces: 64 lowercase hex digits. */
+    public static boolean isSha256Hex(String s) {
+        if (s == null || s.length() != 64) return false;
+        for (int i = 0; i < 64; i++) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    public static byte[] sha256(byte[] input) { return sha256().digest(input); }
+
+    public static String calculateHash(String input) {
+        return toHex(sha256(input.getBytes(StandardCharsets.UTF_8)));
+    }
+
     public static String hashFile(String filePath) {
         try {
             if (filePath == null || filePath.isEmpty()) return "";
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            try (InputStream is = Files.newInputStream(Paths.get(filePath))) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = is.read(buffer)) != -1) {
-                    digest.update(buffer, 0, bytesRead);
-                }
-            }
-
-            byte[] hashBytes = digest.digest();
-            StringBuilder hexString = new StringBuilder();
-            for (byte b : hashBytes) {
-                hexString.append(String.format("%02x", b));
-            }
-            return hexString.toString();
-
+            return FileHasher.hash(Paths.get(filePath), FileHasher.Mode.FLAT);
         } catch (Exception e) {
             System.err.println(e);
             return null;
@@ -47,9 +107,9 @@ public class CryptoUtils {
 
     public static String signData(String data, PrivateKey privateKey) {
         try {
-            Signature signer = Signature.getInstance("SHA256withRSA");
+            Signature signer = SignatureScheme.of(privateKey).signature();
             signer.initSign(privateKey);
-            signer.update(data.getBytes());
+            signer.update(data.getBytes(StandardCharsets.UTF_8));
             byte[] sigBytes = signer.sign();
             return Base64.getEncoder().encodeToString(sigBytes);
         } catch (Exception e) {
@@ -58,10 +118,78 @@ public class CryptoUtils {
     }
 
     public static boolean verifySignature(String data, String signature, PublicKey publicKey) {
+        Signed key = new Signed(publicKey, data, signature);
+        Boolean cached = cached(key);
+        if (cached != null) {
+            verifyCacheHits.increment();
+            return cached;
+        }
+        verifyCacheMisses.increment();
+        boolean verified = verify(data, signature, publicKey);
+        cache(key, verified);
+        return verified;
+    }
+
+    /*
+     * Checks a batch of signatures, e.g. the votes of a certificate or a block and its
+     * transactions. The JDK offers no Ed25519 batch equation, so the cache misses are
+     * verified individually, spread over the common pool once there are enough of them
+     * to pay for it.
+     */
+    public static boolean[] verifyAll(List<Signed> batch) {
+        boolean[] results = new boolean[batch.size()];
+        int[] misses = new int[batch.size()];
+        int missCount = 0;
+        for (int i = 0; i < results.length; i++) {
+            Boolean cached = cached(batch.get(i));
+            if (cached != null) results[i] = cached;
+            else misses[missCount++] = i;
+        }
+        verifyCacheHits.add(results.length - missCount);
+        verifyCacheMisses.add(missCount);
+        if (missCount == 0) return results;
+
+        IntStream pending = IntStream.of(misses).limit(missCount);
+        if (missCount >= PARALLEL_BATCH) pending = pending.parallel();
+        pending.forEach(i -> {
+            Signed signed = batch.get(i);
+            results[i] = verify(signed.data(), signed.signature(), signed.publicKey());
+            cache(signed, results[i]);
+        });
+        return results;
+    }
+
+    private static Map<Signed, Boolean> lru(int capacity) {
+        return new LinkedHashMap<>(capacity, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Signed, Boolean> eldest) { return size() > capacity; }
+        };
+    }
+
+    private static Map<Signed, Boolean> stripe(Signed key) {
+        int h = key.hashCode();
+        return verifyCache.get((h ^ (h >>> 16)) & (VERIFY_CACHE_STRIPES - 1));
+    }
+
+    private static Boolean cached(Signed key) {
+        Map<Signed, Boolean> stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.get(key);
+        }
+    }
+
+    private static void cache(Signed key, boolean verified) {
+        Map<Signed, Boolean> stripe = stripe(key);
+        synchronized (stripe) {
+            stripe.put(key, verified);
+        }
+    }
+
+    private static boolean verify(String data, String signature, PublicKey publicKey) {
         try {
-            Signature verifier = Signature.getInstance("SHA256withRSA");
+            Signature verifier = SignatureScheme.of(publicKey).signature();
             verifier.initVerify(publicKey);
-            verifier.update(data.getBytes());
+            verifier.update(data.getBytes(StandardCharsets.UTF_8));
             return verifier.verify(Base64.getDecoder().decode(signature));
         } catch (Exception e) {
             System.out.println(e);
@@ -69,11 +197,25 @@ public class CryptoUtils {
         }
     }
 
+    /* "<SCHEME>:<Base64 of the encoded key>", as the key files hold it. */
+    public static String encodeKey(Key key) {
+        return SignatureScheme.of(key) + ":" + Base64.getEncoder().encodeToString(key.getEncoded());
+    }
+
+    private static SignatureScheme keyScheme(String encoded) {
+        int colon = encoded.indexOf(':');
+        return colon < 0 ? SignatureScheme.RSA : SignatureScheme.valueOf(encoded.substring(0, colon));
+    }
+
+    private static byte[] keyBytes(String encoded) {
+        return Base64.getDecoder().decode(encoded.substring(encoded.indexOf(':') + 1));
+    }
+
     public static PrivateKey loadPrivateKey(String path){
         try{
-            byte[] keyBytes = Base64.getDecoder().decode(Files.readString(Path.of(path)));
-            PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes);
-            return KeyFactory.getInstance("RSA").generatePrivate(spec);
+            String encoded = Files.readString(Path.of(path)).trim();
+            PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(keyBytes(encoded));
+            return keyScheme(encoded).keyFactory().generatePrivate(spec);
         }catch(Exception e){
             System.out.println(e);
             return null;
@@ -82,9 +224,9 @@ public class CryptoUtils {
 
     public static PublicKey loadPublicKey(String path){
         try{
-            byte[] keyBytes = Base64.getDecoder().decode(Files.readString(Path.of(path)));
-            X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes);
-            return KeyFactory.getInstance("RSA").generatePublic(spec);
+            String encoded = Files.readString(Path.of(path)).trim();
+            X509EncodedKeySpec spec = new X509EncodedKeySpec(keyBytes(encoded));
+            return keyScheme(encoded).keyFactory().generatePublic(spec);
         }catch(Exception e){
             System.out.println(e);
             return null;
@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.stream.IntStream;
+
+/*
+ * Hashes model/data files through read-only mappings instead of stream copies.
+ *
+ * FLAT is a plain SHA-256 of the file, rendered as 64 hex chars exactly like
+ * CryptoUtils.calculateHash. TREE splits the file into CHUNK_BYTES chunks, hashes the
+ * chunks in parallel and folds the digests into a binary Merkle tree; the root is
+ * rendered with a "merkle:" prefix so the dataHash records which mode produced it.
+ * Leaves are hashed as SHA-256(0x00 || digest) and inner nodes as
+ * SHA-256(0x01 || left || right), so no inner node can pass for a leaf and a shorter
+ * list of digests cannot reproduce the root of a longer one. An odd node is promoted.
+ */
+public final class FileHasher {
+    public enum Mode { FLAT, TREE }
+
+    public static final int CHUNK_BYTES = 4 * 1024 * 1024;
+    public static final String TREE_PREFIX = "merkle:";
+
+    private static final long MAP_WINDOW_BYTES = 64L * 1024 * 1024;
+    private static final long TREE_THRESHOLD_BYTES = 16L * 1024 * 1024;
+    private static final byte LEAF = 0x00;
+    private static final byte NODE = 0x01;
+
+    private FileHasher() {}
+
+    public static String hash(String filePath) {
+        try {
+            if (filePath == null || filePath.isEmpty()) return "";
+            Path path = Paths.get(filePath);
+            return hash(path, Files.size(path) >= TREE_THRESHOLD_BYTES ? Mode.TREE : Mode.FLAT);
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println(e);
+            return null;
+        }
+    }
+
+    public static String hash(Path path, Mode mode) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (mode == Mode.FLAT) return CryptoUtils.toHex(flatDigest(channel, size));
+            return TREE_PREFIX + CryptoUtils.toHex(merkleRoot(chunkDigests(channel, size)));
+        }
+    }
+
+    public static Mode modeOf(String dataHash) {
+        return dataHash != null && dataHash.startsWith(TREE_PREFIX) ? Mode.TREE : Mode.FLAT;
+    }
+
+    public static byte[] flatDigest(FileChannel channel, long size) throws IOException {
+        MessageDigest digest = CryptoUtils.sha256();
+        for (long position = 0; position < size; position += MAP_WINDOW_BYTES) {
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW_BYTES, size - position));
+            digest.update(window);
+        }
+        return digest.digest();
+    }
+
+    public static byte[][] chunkDigests(FileChannel channel, long size) {
+        int chunks = (int) Math.max(1, (size + CHUNK_BYTES - 1) / CHUNK_BYTES);
+        byte[][] leaves = new byte[chunks][];
+        IntStream.range(0, chunks).parallel().forEach(i -> {
+            long position = (long) i * CHUNK_BYTES;
+            long length = Math.max(0, Math.min(CHUNK_BYTES, size - position));
+            try {
+                MessageDigest digest = CryptoUtils.sha256();
+                if (length > 0) digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, length));
+                leaves[i] = digest.digest();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        return leaves;
+    }
+
+    public static byte[] merkleRoot(byte[][] leaves) {
+        MessageDigest digest = CryptoUtils.sha256();
+        byte[][] level = new byte[leaves.length][];
+        for (int i = 0; i < leaves.length; i++) {
+            digest.update(LEAF);
+            level[i] = digest.digest(leaves[i]);
+        }
+        while (level.length > 1) {
+            byte[][] next = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < next.length; i++) {
+                if (2 * i + 1 == level.length) {
+                    next[i] = level[2 * i];
+                    continue;
+                }
+                digest.update(NODE);
+                digest.update(level[2 * i]);
+                digest.update(level[2 * i + 1]);
+                next[i] = digest.digest();
+            }
+            level = next;
+        }
+        return level[0];
+    }
+}
@@ -0,0 +1,59 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Fixed-size log-linear histogram in the style of HdrHistogram: values below 32 get a
+ * bucket each, larger values share 32 buckets per power of two, so any recorded value
+ * is reported to within about 3%. Recording is a few shifts and one atomic increment
+ * and never allocates. Percentiles report the upper bound of the bucket they fall in.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray((64 - SUB_BITS + 1) * SUB_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(indexOf(value));
+        count.increment();
+        sum.add(value);
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value)) seen = max.get();
+    }
+
+    public long getCount() { return count.sum(); }
+
+    public long getSum() { return sum.sum(); }
+
+    public long getMax() { return max.get(); }
+
+    public long percentile(double p) {
+        long total = getCount();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return (shift + 1) * SUB_COUNT + (int) ((value >>> shift) - SUB_COUNT);
+    }
+
+    private static long upperBound(int index) {
+        if (index < SUB_COUNT) return index;
+        int shift = index / SUB_COUNT - 1;
+        long mantissa = SUB_COUNT + index % SUB_COUNT;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -1,23 +1,28 @@
 import java.io.*;
 import java.security.*;
-import java.util.Base64;
 
 public class KeyPairGeneratorTool {
 
     public static void generateAndStoreKeys(String validatorId) {
+        generateAndStoreKeys(validatorId, new File("validators"));
+    }
+
+    public static void generateAndStoreKeys(String validatorId, File validatorsDir) {
+        generateAndStoreKeys(validatorId, validatorsDir, SignatureScheme.fromSystemProperties());
+    }
+
+    public static void generateAndStoreKeys(String validatorId, File validatorsDir, SignatureScheme scheme) {
         try{
-            KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
-            keyGen.initialize(2048); // 2048-bit RSA
-            KeyPair pair = keyGen.generateKeyPair();
+            KeyPair pair = scheme.generateKeyPair();
 
             // Save keys to file
-            File dir = new File("validators/" + validatorId);
+            File dir = new File(validatorsDir, validatorId);
             dir.mkdirs();
 
             try (FileWriter pubOut = new FileWriter(new File(dir, "public.key"));
                 FileWriter privOut = new FileWriter(new File(dir, "private.key"))) {
-                pubOut.write(encodeKey(pair.getPublic()));
-                privOut.write(encodeKey(pair.getPrivate()));
+                pubOut.write(CryptoUtils.encodeKey(pair.getPublic()));
+                privOut.write(CryptoUtils.encodeKey(pair.getPrivate()));
             }catch(Exception e){
                 System.out.println(e);
             }
@@ -27,8 +32,4 @@ public class KeyPairGeneratorTool {
         
 
     }
-    
-    private static String encodeKey(Key key) {
-        return Base64.getEncoder().encodeToString(key.getEncoded());
-    }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * In-memory stand-in for PortLink so a whole cluster can run inside one JVM. Each node
+ * joins with its inbound queue and gets back a Transport; a send is dropped with
+ * probability loss, otherwise delivered after latency plus a uniform jitter (so
+ * messages on one link may be reordered, as they can be across reconnects). Crashed
+ * nodes neither send nor receive. With encode set every message takes a MessageCodec
+ * round trip, so the receiver never shares objects with the sender.
+ */
+public class LoopbackNetwork {
+    private final int size;
+    private final long latencyMicros;
+    private final long jitterMicros;
+    private final double loss;
+    private final boolean encode;
+    private final Map<String, LinkedBlockingQueue<Message>> queues = new ConcurrentHashMap<>();
+    private final Set<String> crashed = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService delivery =
+        Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("loopback").daemon().factory());
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    public LoopbackNetwork(int size, long latencyMicros, long jitterMicros, double loss, boolean encode) {
+        this.size = size;
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+        this.loss = loss;
+        this.encode = encode;
+    }
+
+    public Transport join(String id, LinkedBlockingQueue<Message> inbound) {
+        queues.put(id, inbound);
+        return new Endpoint(id);
+    }
+
+    public void crash(String id) { crashed.add(id); }
+
+    public void recover(String id) { crashed.remove(id); }
+
+    public long getSent() { return sent.sum(); }
+
+    public long getDropped() { return dropped.sum(); }
+
+    public void shutdown() { delivery.shutdownNow(); }
+
+    private void deliver(String from, String to, Message message) {
+        LinkedBlockingQueue<Message> queue = queues.get(to);
+        if (queue == null) return;
+        sent.increment();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (crashed.contains(from) || crashed.contains(to) || (loss > 0 && random.nextDouble() < loss)) {
+            dropped.increment();
+            return;
+        }
+        Message copy = encode ? MessageCodec.decode(MessageCodec.encode(message)) : message;
+        long delay = latencyMicros + (jitterMicros > 0 ? random.nextLong(jitterMicros + 1) : 0);
+        if (delay == 0) {
+            queue.offer(copy);
+            return;
+        }
+        try {
+            delivery.schedule(() -> {
+                if (!crashed.contains(to)) queue.offer(copy);
+            }, delay, TimeUnit.MICROSECONDS);
+        } catch (RejectedExecutionException ignored) {
+        }
+    }
+
+    private final class Endpoint implements Transport {
+        private final String myId;
+
+        Endpoint(String myId) { this.myId = myId; }
+
+        @Override
+        public void broadcastMessage(Message message) {
+            for (String peer : queues.keySet()) {
+                if (!peer.equals(myId)) deliver(myId, peer, message);
+            }
+        }
+
+        @Override
+        public boolean sendMessage(String peerId, Message message) {
+            if (!queues.containsKey(peerId)) {
+                System.out.println("Loopback: no node known as " + peerId);
+                return false;
+            }
+            deliver(myId, peerId, message);
+            return true;
+        }
+
+        @Override
+        public int getPortCount() { return size; }
+    }
+}
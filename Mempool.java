@@ -0,0 +1,122 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToLongFunction;
+
+/*
+ * Pending transactions in arrival order. A batch is cut once maxCount transactions or
+ * maxBytes of encoded transactions are waiting, or the oldest one has waited
+ * lingerMillis, whichever comes first. Cut transactions stay in the pool, marked in
+ * flight, until their block commits or they are released after a failed round. A
+ * transaction stamped no later than its submitter's replay floor can never commit, so
+ * it is refused on arrival and dropped before a batch is cut.
+ */
+public class Mempool {
+    private static final int COMMITTED_HISTORY = 65536;
+
+    private final int maxCount;
+    private final long maxBytes;
+    private final long lingerMillis;
+    private final ToLongFunction<String> replayFloor;
+
+    private record Entry(Transaction tx, long arrival, int bytes) {}
+
+    private final LinkedHashMap<String, Entry> pending = new LinkedHashMap<>();
+    private final Set<String> inFlight = new HashSet<>();
+    private final Map<String, Boolean> committed = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) { return size() > COMMITTED_HISTORY; }
+    };
+
+    public Mempool(int maxCount, long maxBytes, long lingerMillis) {
+        this(maxCount, maxBytes, lingerMillis, submitter -> Long.MIN_VALUE);
+    }
+
+    public Mempool(int maxCount, long maxBytes, long lingerMillis, ToLongFunction<String> replayFloor) {
+        if (maxCount < 1 || maxBytes < 1 || lingerMillis < 0) throw new IllegalArgumentException();
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+        this.lingerMillis = lingerMillis;
+        this.replayFloor = replayFloor;
+    }
+
+    public synchronized boolean add(Transaction tx) {
+        if (pending.containsKey(tx.getHash()) || committed.containsKey(tx.getHash()) || isStale(tx)) return false;
+        pending.put(tx.getHash(), new Entry(tx, System.currentTimeMillis(), MessageCodec.encodedSize(tx)));
+        notifyAll();
+        return true;
+    }
+
+    public synchronized void remove(List<Transaction> transactions) {
+        for (Transaction tx : transactions) {
+            pending.remove(tx.getHash());
+            inFlight.remove(tx.getHash());
+            committed.put(tx.getHash(), Boolean.TRUE);
+        }
+    }
+
+    public synchronized void markInFlight(List<Transaction> transactions) {
+        for (Transaction tx : transactions) {
+            if (pending.containsKey(tx.getHash())) inFlight.add(tx.getHash());
+        }
+    }
+
+    public synchronized void release(List<Transaction> transactions) {
+        for (Transaction tx : transactions) inFlight.remove(tx.getHash());
+        notifyAll();
+    }
+
+    public synchronized void releaseAll() {
+        inFlight.clear();
+        notifyAll();
+    }
+
+    public synchronized int size() { return pending.size(); }
+
+    public synchronized boolean anyCommitted(List<Transaction> transactions) {
+        for (Transaction tx : transactions) {
+            if (committed.containsKey(tx.getHash())) return true;
+        }
+        return false;
+    }
+
+    public synchronized List<Transaction> awaitBatch() throws InterruptedException {
+        while (true) {
+            pending.values().removeIf(entry -> !inFlight.contains(entry.tx().getHash()) && isStale(entry.tx()));
+            int count = 0;
+            long bytes = 0;
+            long oldest = Long.MAX_VALUE;
+            for (Entry entry : pending.values()) {
+                if (inFlight.contains(entry.tx().getHash())) continue;
+                count++;
+                bytes += entry.bytes();
+                oldest = Math.min(oldest, entry.arrival());
+            }
+            if (count == 0) {
+                wait();
+                continue;
+            }
+            long waited = System.currentTimeMillis() - oldest;
+            if (count >= maxCount || bytes >= maxBytes || waited >= lingerMillis) return cut();
+            wait(lingerMillis - waited);
+        }
+    }
+
+    private boolean isStale(Transaction tx) { return tx.getTimestamp() <= replayFloor.applyAsLong(tx.getSubmitterId()); }
+
+    private List<Transaction> cut() {
+        List<Transaction> batch = new ArrayList<>();
+        long bytes = 0;
+        for (Entry entry : pending.values()) {
+            if (inFlight.contains(entry.tx().getHash())) continue;
+            if (batch.size() == maxCount || (!batch.isEmpty() && bytes + entry.bytes() > maxBytes)) break;
+            batch.add(entry.tx());
+            bytes += entry.bytes();
+        }
+        for (Transaction tx : batch) inFlight.add(tx.getHash());
+        return batch;
+    }
+}
@@ -1,31 +1,162 @@
 import java.io.Serializable;
+import java.util.List;
 
 public class Message implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 5L;
             
     private final String blockId;         
     private final Type type;        
+    private final int round;
     private final Block block;  
     private final String senderId;            
+    private final String signature;
+    private final transient List<String> chunkHashes;
+    private final byte[] payload;
+    private final QuorumCertificate certificate;
+    private final Transaction transaction;
+    private final int view;
+    private final transient List<Block> blocks;
+    private final Snapshot snapshot;
 
     public enum Type {
         PROPOSE,
-        VOTE
+        VOTE,
+        HELLO,
+        CHUNK_REQUEST,
+        CHUNK_DATA,
+        COMMIT,
+        TX,
+        VIEW_CHANGE,
+        SYNC_REQUEST,
+        SYNC_BLOCKS,
+        CHECKPOINT,
+        SNAPSHOT,
+        PREPARE,
+        PREPARED
     }
 
     public Message(Type type, String senderId, Block block) {
-        this.blockId =block.getHash();
+        this(type, senderId, block.getIndex(), block.getHash(), block, null, null, null, null, null, 0, null, null);
+    }
+
+    public Message(Type type, String senderId, int round, String blockId, String signature) {
+        this(type, senderId, round, blockId, null, signature, null, null, null, null, 0, null, null);
+    }
+
+    private Message(Type type, String senderId, int round, String blockId, Block block, String signature,
+                    List<String> chunkHashes, byte[] payload, QuorumCertificate certificate,
+                    Transaction transaction, int view, List<Block> blocks, Snapshot snapshot) {
+        this.blockId = blockId;
         this.type = type;
+        this.round = round;
         this.block = block;
         this.senderId = senderId;
+        this.signature = signature;
+        this.chunkHashes = chunkHashes;
+        this.payload = payload;
+        this.certificate = certificate;
+        this.transaction = transaction;
+        this.view = view;
+        this.blocks = blocks;
+        this.snapshot = snapshot;
+    }
+
+    /* A leader's PROPOSE; prepared, when not null, proves the block was prepared in an earlier view. */
+    public static Message propose(String senderId, Block block, QuorumCertificate prepared) {
+        return new Message(Type.PROPOSE, senderId, block.getIndex(), block.getHash(), block, null, null, null, prepared, null, 0, null, null);
+    }
+
+    public static Message prepare(String senderId, int round, int view, String blockHash, String signature) {
+        return new Message(Type.PREPARE, senderId, round, blockHash, null, signature, null, null, null, null, view, null, null);
+    }
+
+    /* 2f+1 PREPAREs for one block, gathered by the leader when votes are aggregated. */
+    public static Message prepared(String senderId, QuorumCertificate certificate) {
+        return new Message(Type.PREPARED, senderId, certificate.getRound(), certificate.getBlockHash(),
+                           null, null, null, null, certificate, null, certificate.getView(), null, null);
+    }
+
+    public static Message vote(String senderId, int round, int view, String blockHash, String signature) {
+        return new Message(Type.VOTE, senderId, round, blockHash, null, signature, null, null, null, null, view, null, null);
+    }
+
+    public static Message hello(String senderId, int port) {
+        return new Message(Type.HELLO, senderId, port, null, null, null, null, null, null, null, 0, null, null);
+    }
+
+    /* Signed for one recipient under a random nonce, so it cannot be forged or redirected to another node. */
+    public static Message chunkRequest(String senderId, int nonce, List<String> chunkHashes, String signature) {
+        return new Message(Type.CHUNK_REQUEST, senderId, nonce, null, null, signature, chunkHashes, null, null, null, 0, null, null);
+    }
+
+    public static Message chunkData(String senderId, String chunkHash, byte[] data) {
+        return new Message(Type.CHUNK_DATA, senderId, 0, null, null, null, List.of(chunkHash), data, null, null, 0, null, null);
+    }
+
+    public static Message commit(String senderId, QuorumCertificate certificate) {
+        return new Message(Type.COMMIT, senderId, certificate.getRound(), certificate.getBlockHash(),
+                           null, null, null, null, certificate, null, certificate.getView(), null, null);
+    }
+
+    public static Message transaction(String senderId, Transaction transaction) {
+        return new Message(Type.TX, senderId, 0, transaction.getHash(), null, null, null, null, null, transaction, 0, null, null);
+    }
+
+    /*
+     * prepared: the highest-view block the sender saw 2f+1 PREPAREs for in this round, with
+     * their certificate, or null for both; the new leader re-proposes it.
+     */
+    public static Message viewChange(String senderId, int round, int view, String signature,
+                                     Block prepared, QuorumCertificate certificate) {
+        return new Message(Type.VIEW_CHANGE, senderId, round, prepared == null ? null : prepared.getHash(), prepared, signature,
+                           null, null, certificate, null, view, null, null);
+    }
+
+    /* Asks a peer for its committed blocks from index fromIndex on. */
+    public static Message syncRequest(String senderId, int fromIndex) {
+        return new Message(Type.SYNC_REQUEST, senderId, fromIndex, null, null, null, null, null, null, null, 0, null, null);
+    }
+
+    /* A run of consecutive committed blocks; round carries the sender's chain height. */
+    public static Message syncBlocks(String senderId, int height, List<Block> blocks) {
+        return new Message(Type.SYNC_BLOCKS, senderId, height, null, null, null, null, null, null, null, 0, blocks, null);
+    }
+
+    /* A validator's signature over the digest of its snapshot at block index. */
+    public static Message checkpoint(String senderId, int index, String digest, String signature) {
+        return new Message(Type.CHECKPOINT, senderId, index, digest, null, signature, null, null, null, null, 0, null, null);
+    }
+
+    /* A stable snapshot and its checkpoint block, for a peer behind the sender's oldest kept block. */
+    public static Message snapshot(String senderId, int height, Snapshot snapshot, Block anchor) {
+        return new Message(Type.SNAPSHOT, senderId, height, null, null, null, null, null, null, null, 0, List.of(anchor), snapshot);
     }
 
     public String getBlockId() { return blockId; }
 
     public Type getType() { return type; }
 
+    public int getRound() { return round; }
+
     public Block getBlock() { return block; }
 
-     public String getSenderId() { return senderId; }
+    public String getSenderId() { return senderId; }
+
+    public String getSignature() { return signature; }
+
+    public List<String> getChunkHashes() { return chunkHashes; }
+
+    public byte[] getPayload() { return payload; }
+
+    public QuorumCertificate getCertificate() { return certificate; }
+
+    public Transaction getTransaction() { return transaction; }
+
+    public int getView() { return view; }
+
+    public List<Block> getBlocks() { return blocks; }
+
+    public Snapshot getSnapshot() { return snapshot; }
 
-}
\ No newline at end of file
+    private Object writeReplace() { return MessageCodec.Serialized.of(this); }
+}
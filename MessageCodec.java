@@ -0,0 +1,512 @@
+import java.io.InvalidObjectException;
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/*
+ * Wire format (big-endian):
+ *   frame   := version:u8 type:u8 round:i32 sender:str body
+ *   PROPOSE := block flags:u8 [qc]       (bit 0: carries a PREPARE certificate from an earlier view)
+ *   PREPARE := view:i32 blockHash:hash signature:bytes
+ *   PREPARED := qc                        (over PREPARE signatures)
+ *   VOTE    := view:i32 blockHash:hash signature:bytes
+ *   HELLO   := (round carries the sender's listening port)
+ *   CHUNK_REQUEST := chunks signature:bytes   (round carries the requester's nonce)
+ *   CHUNK_DATA    := chunk data:bytes
+ *   COMMIT  := qc
+ *   TX      := tx
+ *   VIEW_CHANGE := view:i32 signature:bytes flags:u8 [block qc]   (bit 0: carries the sender's highest prepared block)
+ *   SYNC_REQUEST := (round carries the first block index wanted)
+ *   SYNC_BLOCKS  := count:i32 block[count]   (round carries the sender's chain height)
+ *   CHECKPOINT   := digest:hash signature:bytes   (round carries the snapshot's block index)
+ *   SNAPSHOT     := snapshot block             (round carries the sender's chain height)
+ *   chunks  := count:i32 chunk[count]
+ *   chunk   := 32:u8 raw[32]              (a hex SHA-256; chunk hashes name files, so nothing else is accepted)
+ *   block   := index:i32 timestamp:i64 dataHash:hash modelHash:hash proposer:str
+ *              previousHash:hash hash:hash signature:bytes count:i32 tx[count]
+ *              flags:u8 [qc]              (bit 0: has a certificate, bits 1-7: SignatureScheme ordinal)
+ *   tx      := submitter:str timestamp:i64 size:i64 chunks hash:hash signature:bytes
+ *   qc      := round:i32 view:i32 blockHash:hash count:i32 (voter:str signature:bytes)[count]
+ *   snapshot := index:i32 blockHash:hash modelHash:hash lineage:hash updates:i64 faulty:i32
+ *               count:i32 (submitter:str count:i32 (tx:hash timestamp:i64)[count])[count]
+ *               validatorsHash:hash count:i32 validator:str[count] count:i32 (signer:str signature:bytes)[count]
+ *   hash    := len:u8 raw[len]            (lowercase hex digests)
+ *            | 0xFE len:u8 raw[len]       ("merkle:" + hex, see FileHasher; never nested)
+ *            | 0xFF str                   (anything else, e.g. the genesis "0")
+ *   bytes   := len:i32 raw[len]           (Base64 signatures, raw chunk data)
+ *   str     := len:u16 utf8[len]
+ */
+public final class MessageCodec {
+    public static final byte VERSION = 11;
+
+    private static final int TEXT_HASH = 0xFF;
+    private static final int TREE_HASH = 0xFE;
+    /* The smallest encodings of a block, a tx and a (signer, signature) pair, bounding counts read off the wire. */
+    private static final int MIN_BLOCK = 27;
+    private static final int MIN_TX = 27;
+    private static final int MIN_SIGNATURE = 6;
+    private static final Message.Type[] TYPES = Message.Type.values();
+    private static final ThreadLocal<ByteBuffer> SCRATCH = ThreadLocal.withInitial(() -> ByteBuffer.allocate(4096));
+
+    private MessageCodec() {}
+
+    public static ByteBuffer encode(Message message) {
+        ByteBuffer scratch = SCRATCH.get();
+        while (true) {
+            scratch.clear();
+            try {
+                encode(message, scratch);
+                scratch.flip();
+                return scratch;
+            } catch (BufferOverflowException e) {
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+                SCRATCH.set(scratch);
+            }
+        }
+    }
+
+    public static void encode(Message message, ByteBuffer out) {
+        out.put(VERSION);
+        out.put((byte) message.getType().ordinal());
+        out.putInt(message.getRound());
+        putString(out, message.getSenderId());
+        switch (message.getType()) {
+            case PROPOSE:
+                putBlock(out, message.getBlock());
+                out.put((byte) (message.getCertificate() == null ? 0 : 1));
+                if (message.getCertificate() != null) putCertificate(out, message.getCertificate());
+                break;
+            case PREPARE:
+            case VOTE:
+                out.putInt(message.getView());
+                putHash(out, message.getBlockId());
+                putBase64(out, message.getSignature());
+                break;
+            case CHUNK_REQUEST:
+                putHashes(out, message.getChunkHashes());
+                putBase64(out, message.getSignature());
+                break;
+            case CHUNK_DATA:
+                putHash(out, message.getChunkHashes().get(0));
+                putBytes(out, message.getPayload());
+                break;
+            case PREPARED:
+            case COMMIT:
+                putCertificate(out, message.getCertificate());
+                break;
+            case TX:
+                putTransaction(out, message.getTransaction());
+                break;
+            case VIEW_CHANGE:
+                out.putInt(message.getView());
+                putBase64(out, message.getSignature());
+                out.put((byte) (message.getBlock() == null ? 0 : 1));
+                if (message.getBlock() != null) {
+                    putBlock(out, message.getBlock());
+                    putCertificate(out, message.getCertificate());
+                }
+                break;
+            case SYNC_BLOCKS:
+                out.putInt(message.getBlocks().size());
+                for (Block block : message.getBlocks()) putBlock(out, block);
+                break;
+            case CHECKPOINT:
+                putHash(out, message.getBlockId());
+                putBase64(out, message.getSignature());
+                break;
+            case SNAPSHOT:
+                putSnapshot(out, message.getSnapshot());
+                putBlock(out, message.getBlocks().get(0));
+                break;
+            default:
+        }
+    }
+
+    public static Message decode(ByteBuffer in) {
+        byte version = in.get();
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported wire version " + version);
+        int ordinal = in.get() & 0xFF;
+        if (ordinal >= TYPES.length) throw new IllegalArgumentException("Unknown message type " + ordinal);
+        Message.Type type = TYPES[ordinal];
+        int round = in.getInt();
+        String senderId = getString(in);
+        switch (type) {
+            case PROPOSE:
+                Block proposed = getBlock(in);
+                return Message.propose(senderId, proposed, (in.get() & 1) == 0 ? null : getCertificate(in));
+            case PREPARE:
+            case VOTE:
+                int ballotView = in.getInt();
+                String blockId = getHash(in);
+                String ballotSignature = getBase64(in);
+                return type == Message.Type.VOTE
+                    ? Message.vote(senderId, round, ballotView, blockId, ballotSignature)
+                    : Message.prepare(senderId, round, ballotView, blockId, ballotSignature);
+            case PREPARED:
+                return Message.prepared(senderId, getCertificate(in));
+            case HELLO:
+                return Message.hello(senderId, round);
+            case CHUNK_REQUEST:
+                List<String> chunkHashes = getChunkHashes(in);
+                return Message.chunkRequest(senderId, round, chunkHashes, getBase64(in));
+            case CHUNK_DATA:
+                String chunkHash = getChunkHash(in);
+                return Message.chunkData(senderId, chunkHash, getBytes(in));
+            case COMMIT:
+                return Message.commit(senderId, getCertificate(in));
+            case TX:
+                return Message.transaction(senderId, getTransaction(in));
+            case VIEW_CHANGE:
+                int view = in.getInt();
+                String viewSignature = getBase64(in);
+                if ((in.get() & 1) == 0) return Message.viewChange(senderId, round, view, viewSignature, null, null);
+                Block prepared = getBlock(in);
+                return Message.viewChange(senderId, round, view, viewSignature, prepared, getCertificate(in));
+            case SYNC_REQUEST:
+                return Message.syncRequest(senderId, round);
+            case SYNC_BLOCKS:
+                int count = getCount(in, MIN_BLOCK);
+                List<Block> blocks = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) blocks.add(getBlock(in));
+                return Message.syncBlocks(senderId, round, blocks);
+            case CHECKPOINT:
+                String digest = getHash(in);
+                return Message.checkpoint(senderId, round, digest, getBase64(in));
+            case SNAPSHOT:
+                Snapshot snapshot = getSnapshot(in);
+                return Message.snapshot(senderId, round, snapshot, getBlock(in));
+            default:
+                throw new IllegalArgumentException("Unknown message type " + type);
+        }
+    }
+
+    public static void putBlock(ByteBuffer out, Block block) {
+        out.putInt(block.getIndex());
+        out.putLong(block.getTimestamp());
+        putHash(out, block.getDataHash());
+        putHash(out, block.getModelHash());
+        putString(out, block.getBlockProposerId());
+        putHash(out, block.getPreviousHash());
+        putHash(out, block.getHash());
+        putBase64(out, block.getSignature());
+        out.putInt(block.getTransactions().size());
+        for (Transaction tx : block.getTransactions()) putTransaction(out, tx);
+        out.put((byte) (block.getSignatureScheme().ordinal() << 1 | (block.getCertificate() == null ? 0 : 1)));
+        if (block.getCertificate() != null) putCertificate(out, block.getCertificate());
+    }
+
+    public static Block getBlock(ByteBuffer in) {
+        int index = in.getInt();
+        long timestamp = in.getLong();
+        String dataHash = getHash(in);
+        String modelHash = getHash(in);
+        String proposer = getString(in);
+        String previousHash = getHash(in);
+        String hash = getHash(in);
+        String signature = getBase64(in);
+        int count = getCount(in, MIN_TX);
+        List<Transaction> transactions = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) transactions.add(getTransaction(in));
+        int flags = in.get() & 0xFF;
+        SignatureScheme[] schemes = SignatureScheme.values();
+        if (flags >>> 1 >= schemes.length) throw new IllegalArgumentException("Unknown signature scheme " + (flags >>> 1));
+        Block block = new Block(index, timestamp, dataHash, modelHash, proposer, previousHash, hash, signature,
+                                schemes[flags >>> 1], transactions);
+        return (flags & 1) == 0 ? block : block.withCertificate(getCertificate(in));
+    }
+
+    public static void putCertificate(ByteBuffer out, QuorumCertificate certificate) {
+        out.putInt(certificate.getRound());
+        out.putInt(certificate.getView());
+        putHash(out, certificate.getBlockHash());
+        out.putInt(certificate.size());
+        for (Map.Entry<String, String> vote : certificate.getSignatures().entrySet()) {
+            putString(out, vote.getKey());
+            putBase64(out, vote.getValue());
+        }
+    }
+
+    public static QuorumCertificate getCertificate(ByteBuffer in) {
+        int round = in.getInt();
+        int view = in.getInt();
+        String blockHash = getHash(in);
+        int count = getCount(in, MIN_SIGNATURE);
+        Map<String, String> signatures = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String voter = getString(in);
+            if (signatures.put(voter, getBase64(in)) != null) throw new IllegalArgumentException("Duplicate signer " + voter);
+        }
+        return new QuorumCertificate(round, view, blockHash, signatures);
+    }
+
+    public static void putSnapshot(ByteBuffer out, Snapshot snapshot) {
+        out.putInt(snapshot.getIndex());
+        putHash(out, snapshot.getBlockHash());
+        putHash(out, snapshot.getModelHash());
+        putHash(out, snapshot.getLineage());
+        out.putLong(snapshot.getUpdates());
+        out.putInt(snapshot.getFaulty());
+        out.putInt(snapshot.getRecent().size());
+        for (Map.Entry<String, Map<String, Long>> submitter : snapshot.getRecent().entrySet()) {
+            putString(out, submitter.getKey());
+            out.putInt(submitter.getValue().size());
+            for (Map.Entry<String, Long> tx : submitter.getValue().entrySet()) {
+                putHash(out, tx.getKey());
+                out.putLong(tx.getValue());
+            }
+        }
+        putHash(out, snapshot.getValidatorsHash());
+        out.putInt(snapshot.getValidators().size());
+        for (String validator : snapshot.getValidators()) putString(out, validator);
+        out.putInt(snapshot.getSignatures().size());
+        for (Map.Entry<String, String> signature : snapshot.getSignatures().entrySet()) {
+            putString(out, signature.getKey());
+            putBase64(out, signature.getValue());
+        }
+    }
+
+    public static Snapshot getSnapshot(ByteBuffer in) {
+        int index = in.getInt();
+        String blockHash = getHash(in);
+        String modelHash = getHash(in);
+        String lineage = getHash(in);
+        long updates = in.getLong();
+        int faulty = in.getInt();
+        int count = getCount(in, 2 + Integer.BYTES);
+        Map<String, Map<String, Long>> recent = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String submitter = getString(in);
+            int txs = getCount(in, 1 + Long.BYTES);
+            Map<String, Long> timestamps = new LinkedHashMap<>();
+            for (int j = 0; j < txs; j++) timestamps.put(getHash(in), in.getLong());
+            recent.put(submitter, timestamps);
+        }
+        String validatorsHash = getHash(in);
+        count = getCount(in, 2);
+        List<String> validators = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) validators.add(getString(in));
+        count = getCount(in, MIN_SIGNATURE);
+        Map<String, String> signatures = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String signer = getString(in);
+            if (signatures.put(signer, getBase64(in)) != null) throw new IllegalArgumentException("Duplicate signer " + signer);
+        }
+        return new Snapshot(index, blockHash, modelHash, lineage, updates, recent, validators, validatorsHash, faulty, signatures);
+    }
+
+    public static void putTransaction(ByteBuffer out, Transaction tx) {
+        putString(out, tx.getSubmitterId());
+        out.putLong(tx.getTimestamp());
+        out.putLong(tx.getManifest().size());
+        putHashes(out, tx.getManifest().chunks());
+        putHash(out, tx.getHash());
+        putBase64(out, tx.getSignature());
+    }
+
+    public static Transaction getTransaction(ByteBuffer in) {
+        String submitter = getString(in);
+        long timestamp = in.getLong();
+        ChunkStore.Manifest manifest = new ChunkStore.Manifest(in.getLong(), getChunkHashes(in));
+        String hash = getHash(in);
+        return new Transaction(submitter, timestamp, manifest, hash, getBase64(in));
+    }
+
+    public static int encodedSize(Transaction tx) {
+        ByteBuffer scratch = SCRATCH.get();
+        while (true) {
+            scratch.clear();
+            try {
+                putTransaction(scratch, tx);
+                return scratch.position();
+            } catch (BufferOverflowException e) {
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+                SCRATCH.set(scratch);
+            }
+        }
+    }
+
+    static void putHash(ByteBuffer out, String hash) {
+        if (hash != null && hash.startsWith(FileHasher.TREE_PREFIX)
+                && isHexDigest(hash.substring(FileHasher.TREE_PREFIX.length()))) {
+            out.put((byte) TREE_HASH);
+            putHash(out, hash.substring(FileHasher.TREE_PREFIX.length()));
+            return;
+        }
+        if (!isHexDigest(hash)) {
+            out.put((byte) TEXT_HASH);
+            putString(out, hash);
+            return;
+        }
+        int len = hash.length() / 2;
+        out.put((byte) len);
+        for (int i = 0; i < len; i++) {
+            out.put((byte) ((CryptoUtils.hexValue(hash.charAt(2 * i)) << 4) | CryptoUtils.hexValue(hash.charAt(2 * i + 1))));
+        }
+    }
+
+    /* A tree hash wraps exactly one hex digest; anything nested is refused rather than recursed into. */
+    static String getHash(ByteBuffer in) {
+        int len = in.get() & 0xFF;
+        if (len == TEXT_HASH) return getString(in);
+        if (len != TREE_HASH) return getHex(in, len);
+        len = in.get() & 0xFF;
+        if (len == TREE_HASH || len == TEXT_HASH) throw new IllegalArgumentException("Tree hash does not wrap a hex digest");
+        return FileHasher.TREE_PREFIX + getHex(in, len);
+    }
+
+    private static String getHex(ByteBuffer in, int len) {
+        if (len > in.remaining()) throw new BufferUnderflowException();
+        char[] hex = new char[len * 2];
+        for (int i = 0; i < len; i++) {
+            int b = in.get() & 0xFF;
+            hex[2 * i] = CryptoUtils.hexDigit(b >>> 4);
+            hex[2 * i + 1] = CryptoUtils.hexDigit(b);
+        }
+        return new String(hex);
+    }
+
+    private static boolean isHexDigest(String s) {
+        if (s == null || s.isEmpty() || s.length() % 2 != 0 || s.length() > 2 * 127) return false;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) return false;
+        }
+        return true;
+    }
+
+    static void putHashes(ByteBuffer out, List<String> hashes) {
+        out.putInt(hashes.size());
+        for (String hash : hashes) putHash(out, hash);
+    }
+
+    static String getChunkHash(ByteBuffer in) {
+        int len = in.get() & 0xFF;
+        if (len != 32) throw new IllegalArgumentException("Chunk hash is not a SHA-256 digest");
+        in.position(in.position() - 1);
+        return getHash(in);
+    }
+
+    static List<String> getChunkHashes(ByteBuffer in) {
+        int count = getCount(in, 33);
+        List<String> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) hashes.add(getChunkHash(in));
+        return hashes;
+    }
+
+    static void putBase64(ByteBuffer out, String base64) {
+        putBytes(out, base64 == null ? new byte[0] : Base64.getDecoder().decode(base64));
+    }
+
+    static String getBase64(ByteBuffer in) {
+        byte[] raw = getBytes(in);
+        return raw.length == 0 ? null : Base64.getEncoder().encodeToString(raw);
+    }
+
+    static void putBytes(ByteBuffer out, byte[] raw) {
+        out.putInt(raw.length);
+        out.put(raw);
+    }
+
+    static byte[] getBytes(ByteBuffer in) {
+        byte[] raw = new byte[getCount(in, 1)];
+        in.get(raw);
+        return raw;
+    }
+
+    /*
+     * Lengths and counts come off the wire before the data they describe, so they are
+     * checked against what the buffer still holds, each element taking at least minBytes,
+     * before anything is allocated for them.
+     */
+    static int getCount(ByteBuffer in, int minBytes) {
+        int count = in.getInt();
+        if (count < 0 || count > in.remaining() / minBytes) {
+            throw new IllegalArgumentException("Count " + count + " exceeds the " + in.remaining() + " bytes left");
+        }
+        return count;
+    }
+
+    /* A str length is a u16, so a longer string is refused instead of truncated into garbage for the reader. */
+    static void putString(ByteBuffer out, String s) {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        if (utf8.length > 0xFFFF) throw new IllegalArgumentException("String of " + utf8.length + " bytes exceeds the 65535-byte limit");
+        out.putShort((short) utf8.length);
+        out.put(utf8);
+    }
+
+    static String getString(ByteBuffer in) {
+        int len = in.getShort() & 0xFFFF;
+        if (len > in.remaining()) throw new BufferUnderflowException();
+        if (!in.hasArray()) {
+            byte[] utf8 = new byte[len];
+            in.get(utf8);
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+        String s = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+        in.position(in.position() + len);
+        return s;
+    }
+
+    /*
+     * The Java serialized form of messages, blocks, certificates and snapshots is their
+     * wire encoding, so the two cannot drift apart and their collection fields need
+     * not be serializable themselves.
+     */
+    static final class Serialized implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private static final byte MESSAGE = 0;
+        private static final byte BLOCK = 1;
+        private static final byte CERTIFICATE = 2;
+        private static final byte SNAPSHOT = 3;
+
+        private final byte kind;
+        private final byte[] bytes;
+
+        private Serialized(byte kind, Consumer<ByteBuffer> writer) {
+            ByteBuffer out = ByteBuffer.allocate(4096);
+            while (true) {
+                try {
+                    writer.accept(out);
+                    break;
+                } catch (BufferOverflowException e) {
+                    out = ByteBuffer.allocate(out.capacity() * 2);
+                }
+            }
+            this.kind = kind;
+            this.bytes = Arrays.copyOf(out.array(), out.position());
+        }
+
+        static Serialized of(Message message) { return new Serialized(MESSAGE, out -> encode(message, out)); }
+
+        static Serialized of(Block block) { return new Serialized(BLOCK, out -> putBlock(out, block)); }
+
+        static Serialized of(QuorumCertificate certificate) { return new Serialized(CERTIFICATE, out -> putCertificate(out, certificate)); }
+
+        static Serialized of(Snapshot snapshot) { return new Serialized(SNAPSHOT, out -> putSnapshot(out, snapshot)); }
+
+        private Object readResolve() throws ObjectStreamException {
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            try {
+                switch (kind) {
+                    case MESSAGE: return decode(in);
+                    case BLOCK: return getBlock(in);
+                    case CERTIFICATE: return getCertificate(in);
+                    case SNAPSHOT: return getSnapshot(in);
+                    default: throw new InvalidObjectException("Unknown serialized kind " + kind);
+                }
+            } catch (RuntimeException e) {
+                throw new InvalidObjectException(e.toString());
+            }
+        }
+    }
+}
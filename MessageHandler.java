@@ -1,90 +1,535 @@
+import java.io.UncheckedIOException;
 import java.util.concurrent.*;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class MessageHandler {
+    private static final int PIPELINE_DEPTH = 4;
+
+    /*
+     * ALL_TO_ALL: every node broadcasts its PREPARE and VOTE and acts on its own tallies.
+     * AGGREGATED: both go to the round's leader, which broadcasts one PREPARED and one
+     * COMMIT carrying the quorum certificates; messages per round grow linearly with the
+     * node count.
+     */
+    public enum VoteMode { ALL_TO_ALL, AGGREGATED }
+
     private final String myId;
     private final BlockingQueue<Message> inbound;
-    private final PortLink network;
+    private final Transport network;
     private final Blockchain blockchain;
+    private final ChunkSync chunkSync;
+    private final StateSync stateSync;
+    private final Checkpointer checkpointer;
+    private final Mempool mempool;
+    private final List<String> validators;
+    private final List<String> schedule;
+    private final Map<String, Integer> ordinals = new HashMap<>();
 
-    private final AtomicInteger round = new AtomicInteger(1);
-    private final AtomicBoolean hasVoted = new AtomicBoolean(false);
-    private final ConcurrentMap<String, Block> proposedBlocks = new ConcurrentHashMap<>();
-    private final ConcurrentMap<String, Set<String>> voteMap = new ConcurrentHashMap<>();
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final AtomicInteger round;
+    private final NavigableMap<Integer, RoundState> rounds = new TreeMap<>();
+    private final NodeExecutors executors;
+    private final VerifyPipeline pipeline;
     private volatile ScheduledFuture<?> timeoutTask;
+    private volatile ScheduledFuture<?> stallTask;
     private final Object stateLock = new Object();
 
-    private final int timeoutSeconds ;
+    private final AdaptiveTimeout timeout;
+    private final long maxClockSkewMillis;
     private final int faulty; 
+    private final VoteMode voteMode;
+
+    private int view;
+    private final Map<Integer, Set<String>> viewChanges = new HashMap<>();
+    private int failedViews;
+    private long heightStartedNanos;
+    private volatile boolean halted;
+
+    private final Histogram commitLatencyMicros;
+    private final Histogram votesPerRound;
+    private final Histogram verifyMicros;
+    private final LongAdder timeoutsFired;
+    private final LongAdder viewChangesEntered;
+    private final LongAdder syncedBlocks;
+
+    /*
+     * Each round is decided in two phases. A node PREPAREs at most one block per view;
+     * 2f+1 PREPAREs for a block in a view prepare it, and a node that sees them VOTEs for
+     * it in that view and is locked on it. 2f+1 VOTEs in one view commit the block. A
+     * node acts in a round only in views at or above the last one it acted in.
+     */
+    private static final class RoundState {
+        final Map<String, Block> proposals = new LinkedHashMap<>();
+        final Map<Ballot, VoteTally> prepares = new HashMap<>();
+        final Map<Ballot, VoteTally> votes = new HashMap<>();
+        String prepared;
+        int preparedView = -1;
+        String locked;
+        int lockedView = -1;
+        QuorumCertificate highest;
+        int proposedView = -1;
+        QuorumCertificate certificate;
+        long proposedNanos;
+        final List<Message> sent = new ArrayList<>();
+        int sentView = -1;
+    }
+
+    private record Ballot(int view, String blockHash) {}
 
     private int quorum() {
         return 2 * faulty + 1;
     } 
 
-    public MessageHandler(PortLink network,
+    public MessageHandler(Transport network,
+                        Blockchain blockchain,
+                        BlockingQueue<Message> inbound,
+                        int timeoutSeconds,
+                        ChunkSync chunkSync,
+                        Mempool mempool,
+                        VoteMode voteMode,
+                        NodeExecutors executors){
+        this(network, blockchain, inbound, timeoutSeconds, chunkSync, mempool, voteMode, executors, Map.of());
+    }
+
+    /* leaderWeights: turns each validator takes in the leader rotation, 1 for any not listed. */
+    public MessageHandler(Transport network,
                         Blockchain blockchain,
                         BlockingQueue<Message> inbound,
-                        int timeoutSeconds){
+                        int timeoutSeconds,
+                        ChunkSync chunkSync,
+                        Mempool mempool,
+                        VoteMode voteMode,
+                        NodeExecutors executors,
+                        Map<String, Integer> leaderWeights){
         this.inbound = inbound;
+        this.chunkSync = chunkSync;
+        this.mempool = mempool;
         this.network = network;
         this.blockchain = blockchain;
-        this.timeoutSeconds = timeoutSeconds;
+        this.timeout = new AdaptiveTimeout(timeoutSeconds * 1000L, 8 * timeoutSeconds * 1000L);
+        this.maxClockSkewMillis = timeoutSeconds * 1000L;
+        this.voteMode = voteMode;
+        this.executors = executors;
+        this.validators = blockchain.getValidators();
+        for (int i = 0; i < validators.size(); i++) ordinals.put(validators.get(i), i);
+        this.schedule = leaderSchedule(validators, leaderWeights);
+        this.pipeline = new VerifyPipeline(this::isRelevant, this::isAuthentic, this::apply, executors.verify());
 
         this.myId = blockchain.getId();
+        this.round = new AtomicInteger(blockchain.getLatestBlock().getIndex() + 1);
         this.faulty = blockchain.getFaulty();
+        this.view = viewOf(blockchain.getLatestBlock());
         int n = network.getPortCount();
 
+        Metrics metrics = blockchain.getMetrics();
+        this.commitLatencyMicros = metrics.histogram("consensus_commit_latency_micros");
+        this.votesPerRound = metrics.histogram("consensus_votes_per_round");
+        this.verifyMicros = metrics.histogram("crypto_verify_micros");
+        this.timeoutsFired = metrics.counter("consensus_timeouts_total");
+        this.viewChangesEntered = metrics.counter("consensus_view_changes_total");
+        this.syncedBlocks = metrics.counter("sync_blocks_applied_total");
+        metrics.gauge("consensus_round", this::getCurrentRound);
+        metrics.gauge("consensus_view", () -> view);
+        metrics.gauge("consensus_halted", () -> halted ? 1 : 0);
+        metrics.gauge("inbound_queue_depth", inbound::size);
+        metrics.gauge("mempool_size", mempool::size);
+        metrics.gauge("verify_queue_depth", executors::getVerifyQueueDepth);
+        metrics.gauge("pipeline_in_flight", pipeline::getInFlight);
+        metrics.gauge("pipeline_accepted_total", pipeline::getAccepted);
+        metrics.gauge("pipeline_duplicates_total", pipeline::getDuplicates);
+        metrics.gauge("pipeline_stale_total", pipeline::getStale);
+        metrics.gauge("pipeline_rejected_total", pipeline::getRejected);
+
         if (n < 3 * faulty + 1) {
             throw new IllegalArgumentException();
         }
-        startRouter();
+        this.stateSync = new StateSync(myId, blockchain, network, executors, this::applySynced, this::installSnapshot);
+        this.checkpointer = new Checkpointer(myId, blockchain, network, executors.serial());
     }
     
     private int incrementRound() { return round.incrementAndGet(); }
     private int getCurrentRound() { return round.get(); }
 
-    public void resetState() {
+    private boolean inWindow(int r) {
+        int current = getCurrentRound();
+        return r >= current && r < current + PIPELINE_DEPTH;
+    }
+
+    private RoundState slot(int r) { return rounds.computeIfAbsent(r, _ -> new RoundState()); }
+
+    /*
+     * Leaders rotate round-robin over the schedule, shifted by the view. The view only
+     * moves forward through view changes and is re-derived from every committed block,
+     * so a node that missed a view change falls back in step.
+     */
+    private String leaderOf(int r) { return schedule.get(Math.floorMod(r + view, schedule.size())); }
+
+    /* The view the block was committed in, from its certificate; the genesis block has none. */
+    private int viewOf(Block block) {
+        final QuorumCertificate certificate = block.getCertificate();
+        return certificate == null ? view : certificate.getView();
+    }
+
+    /*
+     * The block this node last prepared or voted for in the round, if it did so in the
+     * current view; later rounds extend it. Choices from earlier views live on only as
+     * locks and prepared certificates, which the new leader re-proposes.
+     */
+    private Block chosen(RoundState slot) {
+        if (slot == null || Math.max(slot.preparedView, slot.lockedView) != view) return null;
+        final String hash = slot.preparedView > slot.lockedView ? slot.prepared : slot.locked;
+        return hash == null ? null : slot.proposals.get(hash);
+    }
+
+    /* The committed tip for the current round, the block chosen in round r-1 for a pipelined one. */
+    private Block parentOf(int r) {
+        return r == getCurrentRound() ? blockchain.getLatestBlock() : chosen(rounds.get(r - 1));
+    }
+
+    /*
+     * The sorted validators, each repeated by its weight and interleaved by smooth
+     * weighted round-robin, so a weight-2 validator leads every other turn rather than
+     * twice in a row. With every weight 1 it is the sorted validator list.
+     */
+    static List<String> leaderSchedule(List<String> validators, Map<String, Integer> weights) {
+        int[] weight = new int[validators.size()];
+        int total = 0;
+        for (int i = 0; i < weight.length; i++) {
+            weight[i] = weights.getOrDefault(validators.get(i), 1);
+            if (weight[i] < 0) throw new IllegalArgumentException("Negative weight for " + validators.get(i));
+            total += weight[i];
+        }
+        if (total == 0) return validators;
+        List<String> schedule = new ArrayList<>(total);
+        int[] current = new int[weight.length];
+        for (int turn = 0; turn < total; turn++) {
+            int pick = 0;
+            for (int i = 0; i < weight.length; i++) {
+                current[i] += weight[i];
+                if (current[i] > current[pick]) pick = i;
+            }
+            current[pick] -= total;
+            schedule.add(validators.get(pick));
+        }
+        return List.copyOf(schedule);
+    }
+
+    /* The validator k places after this one, used to spread catch-up requests. */
+    private String peer(int k) { return validators.get(Math.floorMod(ordinals.getOrDefault(myId, 0) + k, validators.size())); }
+
+    public boolean isLeader(int r) {
+        synchronized(stateLock) {
+            return leaderOf(r).equals(myId);
+        }
+    }
+
+    /*
+     * The block a new proposal should extend: the committed tip followed by the chain of
+     * blocks this node has already chosen in the in-flight rounds.
+     */
+    public Block getTip() {
+        synchronized(stateLock) {
+            Block tip = blockchain.getLatestBlock();
+            for (RoundState slot : rounds.tailMap(getCurrentRound(), true).values()) {
+                Block chosen = chosen(slot);
+                if (chosen == null || chosen.getIndex() != tip.getIndex() + 1 || !blockchain.isLinked(tip, chosen)) break;
+                tip = chosen;
+            }
+            return tip;
+        }
+    }
+
+    /* Refused when this node already proposed in this view, or must re-propose a prepared block instead. */
+    public boolean submitProposal(Message msg) {
         synchronized(stateLock) {
-            hasVoted.set(false);
-            proposedBlocks.clear();
-            voteMap.clear();
+            final int r = msg.getRound();
+            if (halted || !inWindow(r) || !leaderOf(r).equals(myId)) return false;
+            final RoundState slot = rounds.get(r);
+            if (slot != null && (slot.proposedView == view || slot.highest != null)) return false;
+            if (conflicts(msg.getBlock())) return false;
+            slot(r).proposedView = view;
+            sent(slot(r), msg);
+            network.broadcastMessage(msg);
+            proposeHandler(msg);
+            return true;
         }
     }
 
+    public void submitTransaction(Transaction tx) {
+        synchronized(stateLock) {
+            if (!mempool.add(tx)) return;
+            network.broadcastMessage(Message.transaction(myId, tx));
+            ensureTimeout();
+        }
+    }
+
+    private boolean hasPendingWork() {
+        return mempool.size() > 0 || !rounds.isEmpty();
+    }
+
+    private void ensureTimeout() {
+        if (timeoutTask == null || timeoutTask.isDone()) startTimeout();
+    }
+
     private void startTimeout() {
         cancelTimeout();
-        timeoutTask = scheduler.schedule(() -> {
-            resetState();
-        }, timeoutSeconds, TimeUnit.SECONDS);
+        if (heightStartedNanos == 0) heightStartedNanos = System.nanoTime();
+        final long millis = timeout.millis(failedViews);
+        stallTask = executors.scheduler().schedule(this::onStall, millis / 2, TimeUnit.MILLISECONDS);
+        timeoutTask = executors.scheduler().schedule(this::onTimeout, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /*
+     * Halfway to the timeout, a stalled round re-sends what this node sent for it in this
+     * view, since one lost proposal or ballot would otherwise cost the whole view. Peers
+     * that already have a message drop the copy before verifying it.
+     */
+    private void onStall() {
+        synchronized(stateLock) {
+            final RoundState slot = rounds.get(getCurrentRound());
+            if (halted || slot == null || slot.sentView != view) return;
+            for (Message msg : slot.sent) {
+                if (msg.getType() == Message.Type.PREPARE || msg.getType() == Message.Type.VOTE) sendBallot(msg.getRound(), msg);
+                else network.broadcastMessage(msg);
+            }
+        }
+    }
+
+    private void sent(RoundState slot, Message msg) {
+        if (slot.sentView != view) {
+            slot.sent.clear();
+            slot.sentView = view;
+        }
+        slot.sent.add(msg);
+    }
+
+    private void onTimeout() {
+        synchronized(stateLock) {
+            if (halted || !hasPendingWork()) return;
+            timeoutsFired.increment();
+            failedViews++;
+            stateSync.request(peer(failedViews), false);
+            requestView(view + 1);
+            startTimeout();
+        }
+    }
+
+    /* Asking again re-sends the request, for peers that lost it and are still a view behind. */
+    private void requestView(int v) {
+        if (v <= view) return;
+        final int r = getCurrentRound();
+        final RoundState slot = rounds.get(r);
+        final QuorumCertificate prepared = slot == null ? null : slot.highest;
+        final Block block = prepared == null ? null : slot.proposals.get(prepared.getBlockHash());
+        final Message request = Message.viewChange(myId, r, v, blockchain.signViewChange(r, v),
+                                                   block, block == null ? null : prepared);
+        network.broadcastMessage(request);
+        recordViewChange(v, myId);
+    }
+
+    /*
+     * A request also reports the sender's highest prepared block, so the next leader can
+     * re-propose it. An aggregating leader answers with the PREPARED of its current view,
+     * which the sender may have missed.
+     */
+    private void viewChangeHandler(Message msg) {
+        final int r = msg.getRound();
+        if (r != getCurrentRound()) return;
+        final RoundState slot = rounds.get(r);
+        if (voteMode == VoteMode.AGGREGATED && slot != null && slot.highest != null && slot.highest.getView() == view
+                && leaderOf(r).equals(myId)) {
+            network.sendMessage(msg.getSenderId(), Message.prepared(myId, slot.highest));
+        }
+        if (msg.getBlock() != null) {
+            addProposal(msg);
+            prepared(r, msg.getCertificate());
+            prepareIfReady(r);
+            reproposePrepared();
+            tryCommit();
+        }
+        if (msg.getView() <= view) return;
+        recordViewChange(msg.getView(), msg.getSenderId());
+    }
+
+    /*
+     * f+1 requests for a view prove at least one correct node timed out, so this node
+     * joins them, even after asking for a later view itself; 2f+1 requests move the node
+     * into the view.
+     */
+    private void recordViewChange(int v, String senderId) {
+        if (!ordinals.containsKey(senderId)) return;
+        final Set<String> senders = viewChanges.computeIfAbsent(v, _ -> new HashSet<>());
+        senders.add(senderId);
+        if (senders.size() >= faulty + 1 && !senders.contains(myId)) requestView(v);
+        if (senders.size() >= quorum() && v > view) enterView(v);
+    }
+
+    /*
+     * Locks and prepared certificates are kept across views: a block that may have been
+     * committed had 2f+1 PREPAREs, so the new leader re-proposes the highest prepared block
+     * it knows of, and a locked node only prepares another block on proof that it was
+     * prepared in a later view than the lock.
+     */
+    private void enterView(int v) {
+        viewChangesEntered.increment();
+        view = v;
+        failedViews = Math.max(failedViews, 1);
+        viewChanges.keySet().removeIf(k -> k <= v);
+        mempool.releaseAll();
+        for (RoundState slot : rounds.values()) {
+            for (String kept : new String[] { slot.locked, slot.highest == null ? null : slot.highest.getBlockHash() }) {
+                final Block block = kept == null ? null : slot.proposals.get(kept);
+                if (block != null) mempool.markInFlight(block.getTransactions());
+            }
+        }
+        System.out.println("Round " + getCurrentRound() + ": entering view " + v + ", leader " + leaderOf(getCurrentRound()));
+        reproposePrepared();
+        prepareIfReady(getCurrentRound());
+        tryCommit();
+        startTimeout();
+    }
+
+    /* Re-proposes, with its certificate, the highest prepared block of each round this node now leads. */
+    private void reproposePrepared() {
+        for (Map.Entry<Integer, RoundState> entry : rounds.entrySet()) {
+            final int r = entry.getKey();
+            final RoundState slot = entry.getValue();
+            if (slot.highest == null || slot.proposedView == view || !inWindow(r) || !leaderOf(r).equals(myId)) continue;
+            final Block block = slot.proposals.get(slot.highest.getBlockHash());
+            if (block == null) continue;
+            slot.proposedView = view;
+            final Message proposal = Message.propose(myId, block, slot.highest);
+            sent(slot, proposal);
+            network.broadcastMessage(proposal);
+        }
     }
 
     private void cancelTimeout() {
         if (timeoutTask != null && !timeoutTask.isDone()) {
             timeoutTask.cancel(true);  
         }
+        if (stallTask != null && !stallTask.isDone()) stallTask.cancel(true);
     }
 
-    private int addVote(String blockId, String voterId, Block newBlock) {
-        proposedBlocks.putIfAbsent(blockId, newBlock);
-        voteMap.computeIfAbsent(blockId, _ -> ConcurrentHashMap.newKeySet()).add(voterId);
-        return  voteMap.get(blockId).size();
+    /* True when this PREPARE or VOTE completed the quorum for its ballot. */
+    private boolean tally(Map<Ballot, VoteTally> tallies, Ballot ballot, String voterId, String signature) {
+        final Integer ordinal = ordinals.get(voterId);
+        if (ordinal == null) return false;
+        return tallies.computeIfAbsent(ballot, _ -> new VoteTally(validators.size(), quorum())).add(ordinal, signature);
     }
 
+    public VerifyPipeline getPipeline() { return pipeline; }
+
+    public StateSync getStateSync() { return stateSync; }
+
+    /*
+     * The transport delivers decoded messages. The router thread only sorts traffic:
+     * chunk messages go straight to ChunkSync, sync messages to StateSync, checkpoints
+     * to the Checkpointer, everything else enters the verify pipeline. A second thread applies
+     * verified messages to the consensus state in arrival order. Called once the handler is
+     * constructed, so no thread sees it half-built; a peer is then asked for blocks missed
+     * while this node was down.
+     */
     public void startRouter() {
-        new Thread(() -> {
+        executors.startLoop("consensus-" + myId, pipeline::runHandoff);
+        executors.startLoop("router-" + myId, () -> {
             while (true) {
                 try {
-                    final Message msg = inbound.take();
-                    messageRouter(msg); 
+                    dispatch(inbound.take());
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     System.out.println(e);
+                    return;
                 }
             }
-        }).start();
+        });
+        executors.scheduler().schedule(() -> stateSync.request(peer(1), false), 1, TimeUnit.SECONDS);
+    }
+
+    private void dispatch(Message msg) throws InterruptedException {
+        switch (msg.getType()) {
+            case CHUNK_REQUEST:
+                chunkSync.onChunkRequest(msg);
+                break;
+            case CHUNK_DATA:
+                executors.verify().execute(() -> chunkSync.onChunkData(msg));
+                break;
+            case SYNC_REQUEST:
+                stateSync.onRequest(msg);
+                break;
+            case SYNC_BLOCKS:
+                stateSync.onBlocks(msg);
+                break;
+            case SNAPSHOT:
+                stateSync.onSnapshot(msg);
+                break;
+            case CHECKPOINT:
+                checkpointer.onCheckpoint(msg);
+                break;
+            default:
+                pipeline.submit(msg);
+        }
+    }
+
+    /* Traffic for rounds past the window means the sender has committed blocks this node lacks. */
+    private boolean isRelevant(Message msg) {
+        final int current = getCurrentRound();
+        switch (msg.getType()) {
+            case PROPOSE:
+            case PREPARE:
+            case PREPARED:
+            case VOTE:
+            case COMMIT:
+                if (msg.getRound() >= current + PIPELINE_DEPTH) stateSync.behind(msg.getSenderId());
+                return msg.getRound() >= current && msg.getRound() < current + PIPELINE_DEPTH;
+            case VIEW_CHANGE:
+                if (msg.getRound() > current) stateSync.behind(msg.getSenderId());
+                return msg.getRound() >= current;
+            default:
+                return true;
+        }
+    }
+
+    private void apply(Message msg) {
+        synchronized(stateLock) {
+            if (halted) return;
+            messageRouter(msg);
+        }
+    }
+
+    private boolean isAuthentic(Message msg) {
+        final long start = System.nanoTime();
+        final boolean authentic = verify(msg);
+        verifyMicros.record((System.nanoTime() - start) / 1000);
+        return authentic;
+    }
+
+    private boolean verify(Message msg) {
+        switch (msg.getType()) {
+            case PROPOSE:
+                return msg.getCertificate() == null ? blockchain.isSigned(msg.getBlock()) : isPrepared(msg.getBlock(), msg.getCertificate());
+            case PREPARE:
+                return blockchain.isValidPrepare(msg);
+            case PREPARED:
+                return blockchain.isValidPrepareCertificate(msg.getCertificate());
+            case VOTE:
+                return blockchain.isValidVote(msg);
+            case COMMIT:
+                return blockchain.isValidCertificate(msg.getCertificate());
+            case TX:
+                return blockchain.isSigned(msg.getTransaction());
+            case VIEW_CHANGE:
+                return blockchain.isValidViewChange(msg)
+                    && (msg.getBlock() == null || (msg.getBlock().getIndex() == msg.getRound() && isPrepared(msg.getBlock(), msg.getCertificate())));
+            default:
+                return false;
+        }
+    }
+
+    private boolean isPrepared(Block block, QuorumCertificate certificate) {
+        return certificate != null && certificate.getRound() == block.getIndex() && certificate.getBlockHash().equals(block.getHash())
+            && blockchain.isSigned(block) && blockchain.isValidPrepareCertificate(certificate);
     }
 
     private void messageRouter(Message msg) {
@@ -92,42 +537,365 @@ public class MessageHandler {
             case PROPOSE:
                 proposeHandler(msg);
                 break;
+            case PREPARE:
+                prepareHandler(msg);
+                break;
+            case PREPARED:
+                preparedHandler(msg);
+                break;
             case VOTE:
                 voteHandler(msg);
                 break;
+            case COMMIT:
+                certificateHandler(msg);
+                break;
+            case TX:
+                transactionHandler(msg);
+                break;
+            case VIEW_CHANGE:
+                viewChangeHandler(msg);
+                break;
             default:
         }
     }
 
     private void proposeHandler(Message msg){
-        if (!hasVoted.compareAndSet(false, true)) return; 
+        final int r = msg.getRound();
+        if(!inWindow(r)) return;
+        addProposal(msg);
+        if (msg.getCertificate() != null) prepared(r, msg.getCertificate());
+        prepareIfReady(r);
+        voteIfReady(r);
+        tryCommit();
+    }
+
+    private void addProposal(Message msg) {
         final Block newBlock = msg.getBlock();
-        
-        if(!blockchain.isValid(newBlock)) return;
-        if(newBlock.getIndex()!=getCurrentRound()) return;
+        final RoundState slot = slot(newBlock.getIndex());
+        if (slot.proposals.containsKey(newBlock.getHash())) return;
+        if (slot.proposals.isEmpty()) slot.proposedNanos = System.nanoTime();
+        chunkSync.onProposal(msg);
+        slot.proposals.put(newBlock.getHash(), newBlock);
+        ensureTimeout();
+    }
 
-        final Message myVote = new Message(Message.Type.VOTE, myId, newBlock);
-        network.broadcastMessage(myVote);
+    private void transactionHandler(Message msg) {
+        final Transaction tx = msg.getTransaction();
+        if (!mempool.add(tx)) return;
+        chunkSync.onTransaction(tx);
+        ensureTimeout();
+    }
 
-        voteHandler(myVote);
+    /*
+     * Prepares in round r once the block it must extend is known: the current leader's
+     * proposal, or the highest prepared block. A node locked on another block only
+     * prepares a block that was prepared in a view after its lock and before this one.
+     * A proposal stamped more than a round timeout ahead of this node's clock is not
+     * prepared; a block already prepared by a quorum is exempt.
+     */
+    private void prepareIfReady(int r) {
+        final RoundState slot = rounds.get(r);
+        if (slot == null || view <= slot.preparedView || view < slot.lockedView) return;
+        final Block parent = parentOf(r);
+        if (parent == null) return;
 
-        startTimeout();
+        final QuorumCertificate highest = slot.highest;
+        final List<Block> candidates = new ArrayList<>(slot.proposals.size() + 1);
+        if (highest != null && slot.proposals.containsKey(highest.getBlockHash())) candidates.add(slot.proposals.get(highest.getBlockHash()));
+        candidates.addAll(slot.proposals.values());
+        for (Block candidate : candidates) {
+            final boolean certified = highest != null && highest.getBlockHash().equals(candidate.getHash());
+            if (!certified && !candidate.getBlockProposerId().equals(leaderOf(r))) continue;
+            if (slot.locked != null && !slot.locked.equals(candidate.getHash())
+                    && !(certified && highest.getView() > slot.lockedView && highest.getView() < view)) continue;
+            if (!blockchain.isLinked(parent, candidate)) continue;
+            if (!certified && !blockchain.isTimely(candidate, maxClockSkewMillis)) continue;
+            if (conflicts(candidate)) continue;
+
+            slot.prepared = candidate.getHash();
+            slot.preparedView = view;
+            mempool.markInFlight(candidate.getTransactions());
+            final Message prepare = Message.prepare(myId, r, view, candidate.getHash(), blockchain.signPrepare(r, view, candidate.getHash()));
+            sent(slot, prepare);
+            sendBallot(r, prepare);
+            addPrepare(prepare);
+
+            prepareIfReady(r + 1);
+            return;
+        }
+    }
+
+    /* Votes for the highest prepared block of round r, if this node has not acted in a later view. */
+    private void voteIfReady(int r) {
+        final RoundState slot = rounds.get(r);
+        if (slot == null || slot.highest == null) return;
+        final int v = slot.highest.getView();
+        if (v <= slot.lockedView || v < slot.preparedView) return;
+        final Block block = slot.proposals.get(slot.highest.getBlockHash());
+        final Block parent = parentOf(r);
+        if (block == null || parent == null || !blockchain.isLinked(parent, block) || conflicts(block)) return;
+
+        slot.locked = block.getHash();
+        slot.lockedView = v;
+        mempool.markInFlight(block.getTransactions());
+        final Message vote = Message.vote(myId, r, v, block.getHash(), blockchain.signVote(r, v, block.getHash()));
+        sent(slot, vote);
+        sendBallot(r, vote);
+        tally(slot.votes, new Ballot(v, block.getHash()), myId, vote.getSignature());
+
+        prepareIfReady(r + 1);
+        voteIfReady(r + 1);
+    }
+
+    private void sendBallot(int r, Message ballot) {
+        final String leader = leaderOf(r);
+        if (voteMode == VoteMode.ALL_TO_ALL) {
+            network.broadcastMessage(ballot);
+        } else if (!leader.equals(myId) && !network.sendMessage(leader, ballot)) {
+            network.broadcastMessage(ballot);
+        }
+    }
+
+    /*
+     * True when the block repeats a committed transaction or one carried by a block this
+     * node chose in an earlier, still uncommitted round, or stamps one at or below its
+     * submitter's replay floor as either would leave it.
+     */
+    private boolean conflicts(Block block) {
+        if (mempool.anyCommitted(block.getTransactions())) return true;
+        final Set<String> inFlight = new HashSet<>();
+        final Map<String, Long> clocks = new HashMap<>();
+        for (RoundState slot : rounds.headMap(block.getIndex(), false).values()) {
+            final Block chosen = chosen(slot);
+            if (chosen == null) continue;
+            for (Transaction tx : chosen.getTransactions()) {
+                inFlight.add(tx.getHash());
+                clocks.merge(tx.getSubmitterId(), tx.getTimestamp(), Math::max);
+            }
+        }
+        for (Transaction tx : block.getTransactions()) {
+            if (inFlight.contains(tx.getHash())) return true;
+        }
+        return !blockchain.isFresh(block, clocks);
+    }
+
+    private void prepareHandler(Message msg) {
+        if (!inWindow(msg.getRound())) return;
+        addPrepare(msg);
+        tryCommit();
+    }
+
+    /* The PREPARE that completes a quorum yields a certificate; the aggregating leader forwards it. */
+    private void addPrepare(Message msg) {
+        final int r = msg.getRound();
+        final Ballot ballot = new Ballot(msg.getView(), msg.getBlockId());
+        final RoundState slot = slot(r);
+        if (!tally(slot.prepares, ballot, msg.getSenderId(), msg.getSignature())) return;
+        final QuorumCertificate certificate = new QuorumCertificate(r, ballot.view(), ballot.blockHash(),
+                                                                    slot.prepares.get(ballot).signatures(validators));
+        if (voteMode == VoteMode.AGGREGATED) {
+            final Message prepared = Message.prepared(myId, certificate);
+            sent(slot, prepared);
+            network.broadcastMessage(prepared);
+        }
+        prepared(r, certificate);
+    }
+
+    private void preparedHandler(Message msg) {
+        final int r = msg.getRound();
+        if (!inWindow(r)) return;
+        prepared(r, msg.getCertificate());
+        prepareIfReady(r);
+        tryCommit();
+    }
+
+    /* Keeps the certificate if it is from a later view than any known for the round, then votes if it can. */
+    private void prepared(int r, QuorumCertificate certificate) {
+        final RoundState slot = slot(r);
+        if (slot.highest == null || certificate.getView() > slot.highest.getView()) slot.highest = certificate;
+        voteIfReady(r);
     }
 
     private void voteHandler(Message msg){
-        if (msg.getBlock().getIndex() != getCurrentRound()) return;
-        final int votes = addVote(msg.getBlockId(), msg.getSenderId(), msg.getBlock());
-        if(votes >= quorum()) commitHandler(proposedBlocks.get(msg.getBlockId()));
+        if (!inWindow(msg.getRound())) return;
+        if (tally(slot(msg.getRound()).votes, new Ballot(msg.getView(), msg.getBlockId()), msg.getSenderId(), msg.getSignature())) tryCommit();
+    }
+
+    private void certificateHandler(Message msg) {
+        final QuorumCertificate certificate = msg.getCertificate();
+        if (!inWindow(certificate.getRound())) return;
+        final RoundState slot = slot(certificate.getRound());
+        if (slot.certificate != null && slot.certificate.getView() >= certificate.getView()) return;
+        slot.certificate = certificate;
+        tryCommit();
+    }
+
+    /*
+     * A round can hold quorums from several views. One for a block whose parent lost is
+     * skipped rather than waited on, so it cannot hide a later view's quorum.
+     */
+    private void tryCommit() {
+        while (!halted) {
+            final int r = getCurrentRound();
+            final RoundState slot = rounds.get(r);
+            if (slot == null) return;
+
+            QuorumCertificate certificate = slot.certificate;
+            Block decided = certificate == null ? null : committable(slot, certificate.getBlockHash());
+            if (decided == null) {
+                certificate = null;
+                for (Map.Entry<Ballot, VoteTally> entry : slot.votes.entrySet()) {
+                    final Ballot ballot = entry.getKey();
+                    if (!entry.getValue().hasQuorum()) continue;
+                    decided = committable(slot, ballot.blockHash());
+                    if (decided == null) continue;
+                    certificate = new QuorumCertificate(r, ballot.view(), ballot.blockHash(), entry.getValue().signatures(validators));
+                    break;
+                }
+            }
+            if (decided == null) return;
+            if (voteMode == VoteMode.AGGREGATED && certificate != slot.certificate
+                    && (leaderOf(r).equals(myId) || decided.getBlockProposerId().equals(myId))) {
+                network.broadcastMessage(Message.commit(myId, certificate));
+            }
+            commitHandler(decided.withCertificate(certificate));
+        }
+    }
+
+    /* Proposals were signature-checked on the verify pool; here only their place on the chain is. */
+    private Block committable(RoundState slot, String blockHash) {
+        final Block block = slot.proposals.get(blockHash);
+        if (block == null || (blockchain.isLinked(blockchain.getLatestBlock(), block) && blockchain.isFresh(block, Map.of()))) return block;
+        System.out.println("Quorum reached for block " + blockHash + " that does not extend the chain");
+        return null;
     }
 
     private void commitHandler(Block newBlock){
         cancelTimeout();
+        if (!store(newBlock)) return;
+        mempool.remove(newBlock.getTransactions());
+        final RoundState slot = rounds.remove(newBlock.getIndex());
+        if (slot != null && slot.proposedNanos != 0) commitLatencyMicros.record((System.nanoTime() - slot.proposedNanos) / 1000);
+        final QuorumCertificate certificate = newBlock.getCertificate();
+        final VoteTally tally = slot == null ? null : slot.votes.get(new Ballot(certificate.getView(), certificate.getBlockHash()));
+        votesPerRound.record(tally != null ? tally.count() : certificate.size());
+
+        final long latencyMillis = heightStartedNanos == 0 ? 0 : (System.nanoTime() - heightStartedNanos) / 1_000_000;
+        if (failedViews == 0) {
+            timeout.sample(latencyMillis);
+        } else {
+            System.out.println("Round " + newBlock.getIndex() + " recovered after " + failedViews
+                               + " timeout(s) in " + latencyMillis + " ms");
+        }
+        failedViews = 0;
+        heightStartedNanos = 0;
+        view = viewOf(newBlock);
+        viewChanges.clear();
+
+        final int next = incrementRound();
+        dropStale(next, newBlock);
+        reproposePrepared();
+        prepareIfReady(next);
+        voteIfReady(next);
+        if (hasPendingWork()) startTimeout();
+    }
+
+    /*
+     * A block chosen or prepared in round r that does not extend the newly committed tip
+     * can never be committed, so it no longer binds this node. The views it acted in still do.
+     */
+    private void dropStale(int r, Block tip) {
+        final RoundState slot = rounds.get(r);
+        if (slot == null) return;
+        if (slot.locked != null && isStale(tip, slot, slot.locked)) slot.locked = null;
+        if (slot.prepared != null && isStale(tip, slot, slot.prepared)) slot.prepared = null;
+        if (slot.highest != null && isStale(tip, slot, slot.highest.getBlockHash())) slot.highest = null;
+    }
+
+    private boolean isStale(Block tip, RoundState slot, String hash) {
+        final Block block = slot.proposals.get(hash);
+        return block != null && !blockchain.isLinked(tip, block);
+    }
+
+    /*
+     * Commits certified blocks fetched by StateSync, in order, as if each round had been
+     * decided locally, then resumes consensus at the new height.
+     */
+    private void applySynced(List<Block> blocks) {
+        synchronized(stateLock) {
+            if (halted) return;
+            int applied = 0;
+            for (Block block : blocks) {
+                final Block tip = blockchain.getLatestBlock();
+                if (block.getIndex() <= tip.getIndex()) continue;
+                if (!blockchain.isLinked(tip, block)) break;
+                cancelTimeout();
+                if (!store(block)) return;
+                mempool.remove(block.getTransactions());
+                rounds.remove(block.getIndex());
+                incrementRound();
+                applied++;
+            }
+            if (applied == 0) return;
+            syncedBlocks.add(applied);
+            System.out.println("Synced " + applied + " block(s), now at round " + getCurrentRound());
+            resumeAfterSync();
+        }
+    }
+
+    /* Jumps to a peer's stable snapshot when the blocks before it are no longer available. */
+    private void installSnapshot(Snapshot snapshot, Block anchor) {
         synchronized(stateLock) {
-            blockchain.commitBlock(newBlock);
-            resetState();  
-            incrementRound();
+            if (halted || anchor.getIndex() < blockchain.getHeight()) return;
+            cancelTimeout();
+            try {
+                blockchain.installSnapshot(snapshot, anchor);
+            } catch (UncheckedIOException e) {
+                halt(anchor, e);
+                return;
+            }
+            mempool.remove(anchor.getTransactions());
+            round.set(anchor.getIndex() + 1);
+            System.out.println("Installed snapshot " + snapshot.getIndex() + ", now at round " + getCurrentRound());
+            resumeAfterSync();
+        }
+    }
+
+    /*
+     * Commits the block to disk. When the store fails, this node stops taking part in
+     * consensus rather than run ahead of what it has persisted; a restart recovers the
+     * log up to its last durable block and catches up through state sync.
+     */
+    private boolean store(Block block) {
+        try {
+            blockchain.commitBlock(block);
+            return true;
+        } catch (UncheckedIOException e) {
+            halt(block, e);
+            return false;
         }
     }
 
+    private void halt(Block block, UncheckedIOException e) {
+        halted = true;
+        cancelTimeout();
+        System.out.println("Stopping consensus: block " + block.getIndex() + " could not be stored: " + e);
+    }
+
+    private void resumeAfterSync() {
+        rounds.headMap(getCurrentRound(), false).clear();
+        failedViews = 0;
+        heightStartedNanos = 0;
+        view = viewOf(blockchain.getLatestBlock());
+        viewChanges.clear();
+
+        dropStale(getCurrentRound(), blockchain.getLatestBlock());
+        reproposePrepared();
+        prepareIfReady(getCurrentRound());
+        voteIfReady(getCurrentRound());
+        tryCommit();
+        if (hasPendingWork()) startTimeout();
+    }
+
 } 
 
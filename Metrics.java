@@ -0,0 +1,114 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+ * One node's counters, gauges and histograms. Components look their instruments up once,
+ * when they are built, and keep the reference, so the hot path is a LongAdder increment
+ * or a Histogram.record. Names follow the Prometheus text format and may carry labels,
+ * e.g. portlink_bytes_sent_total{peer="1235"}; render() produces that format, histograms
+ * as a summary with p50/p90/p99/p999, _count, _sum and _max.
+ *
+ *   -Dmetrics.port=<p>          serve render() at http://localhost:<p>/metrics (default off)
+ *   -Dmetrics.dumpMillis=<ms>   rewrite data/<id>/metrics.txt this often, 0 = off (default 10000)
+ */
+public class Metrics {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final String nodeId;
+    private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+    private HttpServer server;
+
+    public Metrics(String nodeId) { this.nodeId = nodeId; }
+
+    public LongAdder counter(String name) { return counters.computeIfAbsent(name, _ -> new LongAdder()); }
+
+    public void gauge(String name, LongSupplier value) { gauges.put(name, value); }
+
+    public Histogram histogram(String name) { return histograms.computeIfAbsent(name, _ -> new Histogram()); }
+
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        out.append("# node ").append(nodeId).append('\n');
+        counters.forEach((name, counter) -> line(out, name, "", counter.sum()));
+        gauges.forEach((name, gauge) -> line(out, name, "", gauge.getAsLong()));
+        histograms.forEach((name, histogram) -> {
+            for (double q : QUANTILES) {
+                line(out, withLabel(name, "quantile=\"" + q + "\""), "", histogram.percentile(q));
+            }
+            line(out, name, "_count", histogram.getCount());
+            line(out, name, "_sum", histogram.getSum());
+            line(out, name, "_max", histogram.getMax());
+        });
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, String suffix, long value) {
+        int labels = name.indexOf('{');
+        if (labels < 0) out.append(name).append(suffix);
+        else out.append(name, 0, labels).append(suffix).append(name, labels, name.length());
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static String withLabel(String name, String label) {
+        return name.endsWith("}") ? name.substring(0, name.length() - 1) + "," + label + "}" : name + "{" + label + "}";
+    }
+
+    public void serve(int port) {
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = render().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(body);
+                }
+            });
+            server.start();
+            System.out.println("Metrics on http://localhost:" + port + "/metrics");
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    public void dumpEvery(Path file, long millis, ScheduledExecutorService scheduler) {
+        scheduler.scheduleAtFixedRate(() -> dump(file), millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    public void dump(Path file) {
+        try {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            Files.writeString(tmp, render(), StandardCharsets.UTF_8);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    public void close() {
+        if (server != null) server.stop(0);
+    }
+
+    /* Starts the endpoint and the dump file as configured by -Dmetrics.* */
+    public void startFromSystemProperties(Path dataDir, ScheduledExecutorService scheduler) {
+        Integer port = Integer.getInteger("metrics.port");
+        if (port != null) serve(port);
+        long dumpMillis = Long.getLong("metrics.dumpMillis", 10_000L);
+        if (dumpMillis > 0) dumpEvery(dataDir.resolve("metrics.txt"), dumpMillis, scheduler);
+    }
+}
@@ -1,42 +1,182 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 
-// the annoy function is just to get rid of the java warning ;)
+/*
+ * One validator. It can be started from nodes.csv by id alone, or with everything on the
+ * command line. Either way, -Dcluster.config=<csv> watches that file and applies changes
+ * to the peer endpoints without a restart.
+ *
+ *   -Dcluster.config=<csv>         cluster file (default nodes.csv when only an id is given)
+ *   -Dcluster.reloadMillis=<ms>    how often it is checked for changes (default 2000)
+ */
 public class Node {
+    private static final long RELOAD_MILLIS = Long.getLong("cluster.reloadMillis", 2000L);
+
     private final String Id;
     private final LinkedBlockingQueue<Message> inbound;
     private final Blockchain blockchain;
-    private final PortLink network;
+    private final Transport network;
     private final MessageHandler handler;
-    private final Scanner sc;
-
-    private MessageHandler annoy() {return handler;}
+    private final ChunkStore chunkStore;
+    private final Mempool mempool;
+    private final NodeExecutors executors;
+    private final SubmissionQueue submissions;
+    private final Map<String, Integer> weights;
 
     public Node(String Id, String model, int myPort, int[] peerPorts, int faulty, int timeoutSeconds){
+        this(Id, model, new NodeConfigLoader.Endpoint(Id, "localhost", myPort),
+             NodeConfigLoader.Endpoint.onLocalhost(peerPorts), faulty, timeoutSeconds, Map.of());
+    }
+
+    public Node(String Id, String model, NodeConfigLoader.Endpoint self, List<NodeConfigLoader.Endpoint> peers,
+                int faulty, int timeoutSeconds, Map<String, Integer> weights){
+        this(Id, model, faulty, timeoutSeconds, Path.of("data", Id), Path.of("validators"),
+             new LinkedBlockingQueue<>(), NodeExecutors.fromSystemProperties(), new Metrics(Id), self, peers, weights);
+    }
+
+    private Node(String Id, String model, int faulty, int timeoutSeconds, Path dataDir, Path validatorsDir,
+                 LinkedBlockingQueue<Message> inbound, NodeExecutors executors, Metrics metrics,
+                 NodeConfigLoader.Endpoint self, List<NodeConfigLoader.Endpoint> peers, Map<String, Integer> weights) {
+        this(Id, model, faulty, timeoutSeconds, dataDir, validatorsDir, inbound,
+             new PortLink(Id, self, peers, inbound, executors, metrics), executors, metrics, weights);
+    }
+
+    /* Lets a caller supply the transport, e.g. a LoopbackNetwork when several nodes share one JVM. */
+    public Node(String Id, String model, int faulty, int timeoutSeconds, Path dataDir, Path validatorsDir,
+                LinkedBlockingQueue<Message> inbound, Transport network, NodeExecutors executors, Metrics metrics) {
+        this(Id, model, faulty, timeoutSeconds, dataDir, validatorsDir, inbound, network, executors, metrics, Map.of());
+    }
+
+    public Node(String Id, String model, int faulty, int timeoutSeconds, Path dataDir, Path validatorsDir,
+                LinkedBlockingQueue<Message> inbound, Transport network, NodeExecutors executors, Metrics metrics,
+                Map<String, Integer> weights) {
         this.Id = Id;
-        this.inbound = new LinkedBlockingQueue<>();
-        this.blockchain = new Blockchain(Id, model, faulty);
-        this.network = new PortLink(myPort, peerPorts, inbound);
-        this.handler = new MessageHandler(network, blockchain, inbound, timeoutSeconds);
-        this.sc = new Scanner(System.in);
-        annoy();
+        this.weights = weights;
+        this.inbound = inbound;
+        this.blockchain = new Blockchain(Id, model, faulty, dataDir, validatorsDir, metrics);
+        this.executors = executors;
+        this.network = network;
+        this.chunkStore = new ChunkStore(dataDir.resolve("chunks"));
+        this.mempool = new Mempool(Integer.getInteger("batch.maxCount", 256),
+                                   Long.getLong("batch.maxBytes", 1024 * 1024),
+                                   Long.getLong("batch.lingerMillis", 200), blockchain::replayFloor);
+        this.handler = new MessageHandler(network, blockchain, inbound, timeoutSeconds,
+                                          new ChunkSync(Id, blockchain, chunkStore, network, executors.io()), mempool,
+                                          MessageHandler.VoteMode.valueOf(System.getProperty("consensus.voteMode", "ALL_TO_ALL")),
+                                          executors, weights);
+        handler.startRouter();
+        this.submissions = SubmissionQueue.fromSystemProperties(Id, blockchain, chunkStore, handler::submitTransaction,
+                                                                executors, metrics, dataDir);
+        metrics.startFromSystemProperties(dataDir, executors.scheduler());
+        startBatcher();
+    }
+
+    public Blockchain getBlockchain() { return blockchain; }
+
+    /* Queues the update and returns at once; throws RejectedExecutionException when the node is saturated. */
+    public SubmissionQueue.Ticket submit(Path dataPath) { return submissions.submit(dataPath); }
+
+    public SubmissionQueue getSubmissions() { return submissions; }
+
+    /* Chunks and signs on the calling thread, bypassing admission control. */
+    public Transaction submitUpdate(Path dataPath) throws IOException {
+        Transaction tx = blockchain.newTransaction(chunkStore.ingest(dataPath));
+        handler.submitTransaction(tx);
+        return tx;
+    }
+
+    private void submitUpdate(String dataPath) {
+        try {
+            SubmissionQueue.Ticket ticket = submit(Path.of(dataPath));
+            ticket.committed().whenComplete((block, error) -> {
+                if (error != null) System.out.println(dataPath + ": " + error);
+                else System.out.println(dataPath + " committed in block " + block.getIndex());
+            });
+        } catch (RejectedExecutionException e) {
+            System.out.println(e);
+        }
+    }
+
+    /*
+     * Re-reads configFile when it changes and hands this node's peers to PortLink. New
+     * faulty or weight values are only reported: every node has to switch together, so
+     * they wait for a restart.
+     */
+    public void watchConfig(Path configFile) {
+        if (!(network instanceof PortLink link)) return;
+        NodeConfigLoader.watch(configFile, RELOAD_MILLIS, executors.scheduler(), configs -> {
+            NodeConfigLoader.NodeConfig self = NodeConfigLoader.find(configs, Id);
+            if (self == null) {
+                System.out.println(Id + " is not in " + configFile + "; keeping the current peers");
+                return;
+            }
+            link.updatePeers(self.peers);
+            if (self.faultyCount != blockchain.getFaulty() || !weightsUnchanged(NodeConfigLoader.weights(configs))) {
+                System.out.println("Changes to faulty or weight in " + configFile + " take effect after a restart");
+            }
+        });
+    }
+
+    private boolean weightsUnchanged(Map<String, Integer> reloaded) {
+        for (String validator : blockchain.getValidators()) {
+            if (!weights.getOrDefault(validator, 1).equals(reloaded.getOrDefault(validator, 1))) return false;
+        }
+        return true;
+    }
+
+    public void close() {
+        submissions.close();
+        blockchain.getMetrics().close();
+        executors.shutdown();
+        blockchain.close();
+    }
+
+    private void startBatcher() {
+        executors.startLoop("batcher-" + Id, () -> {
+            while (true) {
+                try {
+                    List<Transaction> batch = mempool.awaitBatch();
+                    if (!blockPropose(batch)) {
+                        mempool.release(batch);
+                        Thread.sleep(20);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    System.out.println(e);
+                    return;
+                }
+            }
+        });
     }
 
-    private void blockPropose(String dataPath) {
-        Block newBlock = blockchain.forgeBlock(dataPath);
+    private boolean blockPropose(List<Transaction> batch) {
+        Block tip = handler.getTip();
+        if (!handler.isLeader(tip.getIndex() + 1)) return false;
+        Block newBlock = blockchain.forgeBlock(batch, tip);
         Message msg = new Message(Message.Type.PROPOSE, Id, newBlock);
-        network.broadcastMessage(msg);
+        return handler.submitProposal(msg);
     }
 
+    /* The terminal menu. When stdin closes the node keeps running, fed by SubmissionQueue. */
     public void run(){
+        Scanner sc = new Scanner(System.in);
         while (true) {
-            System.out.print("0: Print Chain | 1: Propose Block: ");
+            System.out.print("0: Print Chain | 1: Submit Model Update: ");
             int choice;
             try {
                 choice = Integer.parseInt(sc.nextLine().trim());
             } catch (NumberFormatException e) {
                 System.out.println("Invalid input.");
                 continue;
+            } catch (NoSuchElementException e) {
+                return;
             }
 
             switch (choice) {
@@ -45,8 +185,8 @@ public class Node {
                     break;
                 case 1:
                     System.out.print("Enter model path: ");
-                    String path = sc.nextLine();
-                    blockPropose(path);
+                    if (!sc.hasNextLine()) return;
+                    submitUpdate(sc.nextLine().trim());
                     break;
                 default:
                     System.out.println("Invalid option");
@@ -55,21 +195,33 @@ public class Node {
     }
 
     public static void main(String[] args) {
-        if (args.length < 6) {
-            System.err.println("Usage: Node <id> <model> <myPort> <peerPortsCSV> <faultyCount> <timeoutSeconds>");
+        if (args.length != 1 && args.length < 6) {
+            System.err.println("Usage: Node <id>   (settings from -Dcluster.config, default nodes.csv)");
+            System.err.println("       Node <id> <model> <[host:]myPort> <[host:]peerPortsCSV> <faultyCount> <timeoutSeconds>");
             return;
         }
         String id = args[0];
-        String model = args[1];
-        int myPort = Integer.parseInt(args[2]);
-        String[] peerStr = args[3].split(",");
-        int[] peers = new int[peerStr.length];
-        for (int i = 0; i < peerStr.length; i++) {
-            peers[i] = Integer.parseInt(peerStr[i]);
+        String configFile = System.getProperty("cluster.config", args.length == 1 ? "nodes.csv" : null);
+        List<NodeConfigLoader.NodeConfig> cluster = configFile == null ? List.of() : NodeConfigLoader.loadConfigs(configFile);
+        Node node;
+        if (args.length == 1) {
+            NodeConfigLoader.NodeConfig config = NodeConfigLoader.find(cluster, id);
+            if (config == null) {
+                System.err.println(id + " is not listed in " + configFile);
+                return;
+            }
+            node = new Node(id, config.model, config.endpoint(), config.peers, config.faultyCount, config.timeoutSeconds,
+                            NodeConfigLoader.weights(cluster));
+        } else {
+            String model = args[1];
+            NodeConfigLoader.Endpoint self = NodeConfigLoader.Endpoint.parse(id, args[2]);
+            List<NodeConfigLoader.Endpoint> peers = new ArrayList<>();
+            for (String peer : args[3].split(",")) peers.add(NodeConfigLoader.Endpoint.parse(null, peer));
+            int faulty = Integer.parseInt(args[4]);
+            int timeout = Integer.parseInt(args[5]);
+            node = new Node(id, model, self, peers, faulty, timeout, NodeConfigLoader.weights(cluster));
         }
-        int faulty = Integer.parseInt(args[4]);
-        int timeout = Integer.parseInt(args[5]);
-
-        new Node(id, model, myPort, peers, faulty, timeout).run();
+        if (configFile != null) node.watchConfig(Path.of(configFile));
+        node.run();
     }
 }
\ No newline at end of file
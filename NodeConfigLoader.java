@@ -1,67 +1,166 @@
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
+/*
+ * Reads nodes.csv. Columns are found by the header, so their order is free:
+ *
+ *   id,port,model,timeoutSeconds,faulty[,weight]
+ *
+ * port is "port" (localhost) or "host:port". faulty is the f that node runs with, as a
+ * number, or true/false for 1/0 as in older files. weight (default 1) is how many turns
+ * the validator takes in the leader rotation per turn of a weight-1 validator; every
+ * node must be given the same weights.
+ */
 public class NodeConfigLoader {
 
+    /* Where a validator listens. id is null when only the address is known, as with ports given on the command line. */
+    public record Endpoint(String id, String host, int port) {
+        public static Endpoint parse(String id, String hostPort) {
+            String value = hostPort.trim();
+            int colon = value.lastIndexOf(':');
+            if (colon < 0) return new Endpoint(id, "localhost", Integer.parseInt(value));
+            String host = value.substring(0, colon);
+            if (host.startsWith("[") && host.endsWith("]")) host = host.substring(1, host.length() - 1);
+            return new Endpoint(id, host.isEmpty() ? "localhost" : host, Integer.parseInt(value.substring(colon + 1)));
+        }
+
+        public static List<Endpoint> onLocalhost(int[] ports) {
+            List<Endpoint> endpoints = new ArrayList<>();
+            for (int port : ports) endpoints.add(new Endpoint(null, "localhost", port));
+            return endpoints;
+        }
+
+        public String address() { return (host.contains(":") ? "[" + host + "]" : host) + ":" + port; }
+    }
+
     public static class NodeConfig {
         public String id;
+        public String host;
         public int myPort;
         public String model;
         public int timeoutSeconds;
         public int faultyCount;
+        public int weight;
         public int[] peerPorts;
+        public List<Endpoint> peers;
 
-        public NodeConfig(String id, int myPort, String model, int timeoutSeconds, int faultyCount, int[] peerPorts) {
+        public NodeConfig(String id, String host, int myPort, String model, int timeoutSeconds, int faultyCount, int weight,
+                          List<Endpoint> peers) {
             this.id = id;
+            this.host = host;
             this.myPort = myPort;
             this.model = model;
             this.timeoutSeconds = timeoutSeconds;
             this.faultyCount = faultyCount;
-            this.peerPorts = peerPorts;
+            this.weight = weight;
+            this.peers = peers;
+            this.peerPorts = peers.stream().mapToInt(Endpoint::port).toArray();
         }
+
+        public Endpoint endpoint() { return new Endpoint(id, host, myPort); }
     }
 
+    /* Empty when the file cannot be read or any row is malformed; no partial peer set is returned. */
     public static List<NodeConfig> loadConfigs(String csvFile){
         List<NodeConfig> configs = new ArrayList<>();
-        List<Integer> allPorts = new ArrayList<>();
+        List<Endpoint> endpoints = new ArrayList<>();
+        List<String[]> rows = new ArrayList<>();
+        Map<String, Integer> columns = new HashMap<>();
 
         try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
-            String line = br.readLine(); 
+            String line = br.readLine();
+            if (line == null) return configs;
+            String[] header = line.split(",");
+            for (int i = 0; i < header.length; i++) columns.put(header[i].trim(), i);
             while ((line = br.readLine()) != null) {
+                if (line.isBlank() || line.startsWith("#")) continue;
                 String[] parts = line.split(",");
-                allPorts.add(Integer.parseInt(parts[1].trim()));
+                for (int i = 0; i < parts.length; i++) parts[i] = parts[i].trim();
+                rows.add(parts);
+                endpoints.add(Endpoint.parse(parts[columns.get("id")], parts[columns.get("port")]));
             }
-        }catch (IOException e) {
-            System.out.println(e);
-        }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
-            String line = br.readLine(); 
-            while ((line = br.readLine()) != null) {
-                String[] parts = line.split(",");
+            for (int r = 0; r < rows.size(); r++) {
+                String[] parts = rows.get(r);
+                Endpoint self = endpoints.get(r);
+                String model = parts[columns.get("model")];
+                int timeoutSeconds = Integer.parseInt(parts[columns.get("timeoutSeconds")]);
+                int faultyCount = parseFaulty(parts[columns.get("faulty")]);
+                Integer weightColumn = columns.get("weight");
+                int weight = weightColumn == null || weightColumn >= parts.length || parts[weightColumn].isEmpty()
+                    ? 1 : Integer.parseInt(parts[weightColumn]);
 
-                String id = parts[0].trim();
-                int myPort = Integer.parseInt(parts[1].trim());
-                String model = parts[2].trim();
-                int timeoutSeconds = Integer.parseInt(parts[3].trim());
-                boolean faulty = Boolean.parseBoolean(parts[4].trim());
+                List<Endpoint> peers = new ArrayList<>(endpoints);
+                peers.remove(self);
 
-                int faultyCount = faulty ? 1 : 0;
+                configs.add(new NodeConfig(self.id(), self.host(), self.port(), model, timeoutSeconds, faultyCount, weight, peers));
+            }
+        }catch (IOException | RuntimeException e) {
+            System.out.println(csvFile + ": " + e);
+            return new ArrayList<>();
+        }
 
-                List<Integer> peerList = new ArrayList<>(allPorts);
-                peerList.remove(Integer.valueOf(myPort));
+        return configs;
+    }
 
-                int[] peerPorts = peerList.stream().mapToInt(Integer::intValue).toArray();
+    private static int parseFaulty(String value) {
+        if (value.equalsIgnoreCase("true")) return 1;
+        if (value.equalsIgnoreCase("false")) return 0;
+        return Integer.parseInt(value);
+    }
 
-                configs.add(new NodeConfig(id, myPort, model, timeoutSeconds, faultyCount, peerPorts));
-            }
-        }catch (IOException e) {
-            System.out.println(e);
+    public static NodeConfig find(List<NodeConfig> configs, String id) {
+        for (NodeConfig config : configs) {
+            if (config.id.equals(id)) return config;
         }
+        return null;
+    }
 
-        return configs;
+    public static Map<String, Integer> weights(List<NodeConfig> configs) {
+        Map<String, Integer> weights = new LinkedHashMap<>();
+        for (NodeConfig config : configs) weights.put(config.id, config.weight);
+        return weights;
+    }
+
+    /*
+     * Calls listener with the re-read file whenever its modification time changes. The first
+     * check always calls it, so an edit made while the caller was starting up is not missed.
+     * A file that does not parse is reported and skipped, leaving the last good config in
+     * place, and nothing thrown here or by the listener stops later checks.
+     */
+    public static void watch(Path csvFile, long intervalMillis, ScheduledExecutorService scheduler,
+                             Consumer<List<NodeConfig>> listener) {
+        FileTime[] seen = { null };
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                FileTime current = modified(csvFile);
+                if (current == null || current.equals(seen[0])) return;
+                seen[0] = current;
+                List<NodeConfig> configs = loadConfigs(csvFile.toString());
+                if (!configs.isEmpty()) listener.accept(configs);
+            } catch (RuntimeException e) {
+                System.out.println(e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static FileTime modified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return null;
+        }
     }
-}
\ No newline at end of file
+}
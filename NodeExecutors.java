@@ -0,0 +1,102 @@
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+
+/*
+ * The threads a node runs on. Blocking work (chunk and sync replies waiting for room
+ * in a peer's outbound buffer, the batcher) goes to the io executor: a virtual thread
+ * per task, or a cached platform pool. CPU-bound signature and hash checks go to a
+ * bounded verify pool whose callers run the task themselves when it is saturated.
+ *
+ *   -Dexec.io=VIRTUAL|PLATFORM      (default VIRTUAL)
+ *   -Dexec.verifyThreads=<n>        (default: available processors)
+ *   -Dexec.verifyQueue=<n>          (default 4096)
+ */
+public class NodeExecutors {
+    public enum IoMode { VIRTUAL, PLATFORM }
+
+    private final IoMode ioMode;
+    private final ExecutorService io;
+    private final ThreadPoolExecutor verify;
+    private final ScheduledExecutorService scheduler;
+    private final List<Thread> loops = new CopyOnWriteArrayList<>();
+
+    public NodeExecutors(IoMode ioMode, int verifyThreads, int verifyQueue) {
+        this.ioMode = ioMode;
+        this.io = ioMode == IoMode.VIRTUAL
+            ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("io-", 0).factory())
+            : Executors.newCachedThreadPool(Thread.ofPlatform().name("io-", 0).daemon().factory());
+        this.verify = new ThreadPoolExecutor(verifyThreads, verifyThreads, 0L, TimeUnit.MILLISECONDS,
+                                             new ArrayBlockingQueue<>(verifyQueue),
+                                             Thread.ofPlatform().name("verify-", 0).daemon().factory(),
+                                             new ThreadPoolExecutor.CallerRunsPolicy());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("timer").daemon().factory());
+    }
+
+    public static NodeExecutors fromSystemProperties() {
+        return new NodeExecutors(IoMode.valueOf(System.getProperty("exec.io", "VIRTUAL")),
+                                 Integer.getInteger("exec.verifyThreads", Runtime.getRuntime().availableProcessors()),
+                                 Integer.getInteger("exec.verifyQueue", 4096));
+    }
+
+    public IoMode getIoMode() { return ioMode; }
+
+    public ExecutorService io() { return io; }
+
+    public ExecutorService verify() { return verify; }
+
+    public ScheduledExecutorService scheduler() { return scheduler; }
+
+    /* Runs tasks one at a time, in submission order, on the io executor. */
+    public Executor serial() { return new SerialExecutor(io); }
+
+    /* Long-lived loops (selector, router) stay on platform threads. */
+    public Thread startLoop(String name, Runnable loop) {
+        Thread thread = Thread.ofPlatform().name(name).start(loop);
+        loops.add(thread);
+        return thread;
+    }
+
+    /* Interrupts every loop and stops the pools; used when several nodes share one JVM. */
+    public void shutdown() {
+        for (Thread loop : loops) loop.interrupt();
+        for (Thread loop : loops) {
+            try {
+                loop.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        scheduler.shutdownNow();
+        verify.shutdownNow();
+        io.shutdownNow();
+    }
+
+    public int getVerifyQueueDepth() { return verify.getQueue().size(); }
+
+    private static final class SerialExecutor implements Executor {
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+        private final Executor backing;
+        private Runnable active;
+
+        SerialExecutor(Executor backing) { this.backing = backing; }
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            tasks.add(() -> {
+                try {
+                    task.run();
+                } finally {
+                    scheduleNext();
+                }
+            });
+            if (active == null) scheduleNext();
+        }
+
+        private synchronized void scheduleNext() {
+            if ((active = tasks.poll()) != null) backing.execute(active);
+        }
+    }
+}
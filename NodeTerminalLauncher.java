@@ -8,7 +8,7 @@ public class NodeTerminalLauncher {
 
     private void compileAllSources(String workingDir) {
         try {
-            String findCommand = String.format("find %s -name \"*.java\"", workingDir);
+            String findCommand = String.format("find %s -name \"*.java\" -not -path \"*/bench/*\"", workingDir);
 
             Process findProcess = new ProcessBuilder("bash", "-c", findCommand).start();
 
@@ -61,22 +61,13 @@ public class NodeTerminalLauncher {
             if (!pubKeyFile.exists() || !privKeyFile.exists()) KeyPairGeneratorTool.generateAndStoreKeys(cfg.id);
         }
 
+        String configPath = new File(csvFile).getAbsolutePath();
         for (NodeConfigLoader.NodeConfig cfg : configs) {
-            StringBuilder peers = new StringBuilder();
-            for (int i = 0; i < cfg.peerPorts.length; i++) {
-                peers.append(cfg.peerPorts[i]);
-                if (i < cfg.peerPorts.length - 1) peers.append(",");
-            }
-
             String nodeCommand = String.format(
-                "java -cp %s/.out Node %s %s %d %s %d %d",
+                "java -cp %s/.out -Dcluster.config=%s Node %s",
                 workingDir,
-                cfg.id,
-                cfg.model,
-                cfg.myPort,
-                peers,
-                cfg.faultyCount,
-                cfg.timeoutSeconds
+                configPath,
+                cfg.id
             );
 
             String appleScriptCommand = String.format(
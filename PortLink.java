@@ -1,64 +1,540 @@
-import java.io.*;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class PortLink {
+/*
+ * TCP transport between validators on any hosts. Each peer endpoint gets one pooled
+ * outbound connection, kept across reloads of the peer set, that carries this node's
+ * frames; the peer's own connection carries frames the other way. A connection that
+ * does not complete within the connect timeout, or stops taking writes, is dropped and
+ * redialled after an exponential backoff with jitter. Idle outbound connections send a
+ * HELLO as keepalive, and inbound connections silent for the read timeout are closed,
+ * so half-open connections to a vanished host do not linger.
+ *
+ *   -Dportlink.bind=<address>             listen address (default: the node's host, or
+ *                                         every interface when that is localhost)
+ *   -Dportlink.connectTimeoutMillis=<ms>  (default 3000)
+ *   -Dportlink.readTimeoutMillis=<ms>     idle/stall limit, 0 = off (default 15000)
+ *   -Dportlink.reconnectMinMillis=<ms>    (default 100)
+ *   -Dportlink.reconnectMaxMillis=<ms>    (default 5000)
+ */
+public class PortLink implements Transport {
+    private static final int MAX_FRAME_BYTES = 64 * 1024 * 1024;
+    /* Frames from a connection that has not sent HELLO yet; a HELLO is a few dozen bytes. */
+    private static final int MAX_GREETING_FRAME_BYTES = 4 * 1024;
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final long MAX_PENDING_BYTES = 8L * 1024 * 1024;
+    private static final long CONNECT_TIMEOUT_MILLIS = Long.getLong("portlink.connectTimeoutMillis", 3000L);
+    private static final long READ_TIMEOUT_MILLIS = Long.getLong("portlink.readTimeoutMillis", 15_000L);
+    private static final long RECONNECT_MIN_MILLIS = Long.getLong("portlink.reconnectMinMillis", 100L);
+    private static final long RECONNECT_MAX_MILLIS = Long.getLong("portlink.reconnectMaxMillis", 5000L);
+
+    private final String myId;
     private final int myPort;
-    private final int[] peerPorts;
-    private final LinkedBlockingQueue<Message> inbound; 
+    private final InetAddress localAddress;
+    private final LinkedBlockingQueue<Message> inbound;
+    private final Selector selector;
+    private volatile List<Peer> peers = List.of();
+    private final Map<String, Peer> peersById = new ConcurrentHashMap<>();
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final NodeExecutors executors;
+    private final Metrics metrics;
+
+    private long nextSweepAt;
+
+    public PortLink(String myId, int myPort, int[] peerPorts, LinkedBlockingQueue<Message> inbound,
+                    NodeExecutors executors, Metrics metrics) {
+        this(myId, new NodeConfigLoader.Endpoint(myId, "localhost", myPort),
+             NodeConfigLoader.Endpoint.onLocalhost(peerPorts), inbound, executors, metrics);
+    }
 
-    public PortLink(int myPort, int[] peerPorts,LinkedBlockingQueue<Message> inbound) {
-        this.myPort = myPort;
-        this.peerPorts = peerPorts;
+    public PortLink(String myId, NodeConfigLoader.Endpoint self, List<NodeConfigLoader.Endpoint> peerEndpoints,
+                    LinkedBlockingQueue<Message> inbound, NodeExecutors executors, Metrics metrics) {
+        this.myId = myId;
+        this.executors = executors;
+        this.metrics = metrics;
+        this.myPort = self.port();
         this.inbound = inbound;
 
-        new Thread(this::startServer).start();
         try {
-            Thread.sleep(1000L);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            this.selector = Selector.open();
+            String bind = System.getProperty("portlink.bind", self.host().equals("localhost") ? null : self.host());
+            InetSocketAddress listen = bind == null ? new InetSocketAddress(myPort) : new InetSocketAddress(bind, myPort);
+            this.localAddress = listen.getAddress().isAnyLocalAddress() ? null : listen.getAddress();
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(listen);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        List<Peer> initial = new ArrayList<>();
+        for (NodeConfigLoader.Endpoint endpoint : peerEndpoints) initial.add(new Peer(endpoint));
+        this.peers = List.copyOf(initial);
+        for (Peer peer : initial) nameById(peer);
+        metrics.gauge("portlink_peers", () -> peers.size());
+        metrics.gauge("portlink_peers_connected", () -> peers.stream().filter(peer -> peer.connected).count());
+
+        executors.startLoop("portlink-" + myPort, this::selectorLoop);
     }
 
     public LinkedBlockingQueue<Message> getQueue() { return inbound; }
 
-    public int getPortCount(){ return peerPorts.length+1; }
+    @Override
+    public int getPortCount(){ return peers.size()+1; }
 
-    private void startServer() {
-        try (ServerSocket serverSocket = new ServerSocket(this.myPort)) {
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                new Thread(() -> handleMessage(clientSocket)).start();
+    /*
+     * Replaces the peer set, e.g. after nodes.csv changed. Connections to endpoints still
+     * in the set are kept; removed endpoints are closed and new ones dialled.
+     */
+    public void updatePeers(List<NodeConfigLoader.Endpoint> endpoints) {
+        selectorTasks.add(() -> applyPeers(endpoints));
+        selector.wakeup();
+    }
+
+    private void applyPeers(List<NodeConfigLoader.Endpoint> endpoints) {
+        Map<String, Peer> pool = new HashMap<>();
+        for (Peer peer : peers) pool.put(peer.endpoint.address(), peer);
+        List<Peer> next = new ArrayList<>();
+        for (NodeConfigLoader.Endpoint endpoint : endpoints) {
+            Peer peer = pool.remove(endpoint.address());
+            if (peer == null) {
+                peer = new Peer(endpoint);
+                System.out.println("PortLink: added peer " + endpoint.address());
+            } else {
+                peer.endpoint = endpoint;
             }
-        } catch (IOException e) {
+            nameById(peer);
+            next.add(peer);
+        }
+        peers = List.copyOf(next);
+        for (Peer removed : pool.values()) {
+            removed.close();
+            peersById.values().removeIf(peer -> peer == removed);
+            System.out.println("PortLink: removed peer " + removed.endpoint.address());
+        }
+    }
+
+    /*
+     * Sends go straight onto the peer's outbound buffer, which holds at most
+     * MAX_PENDING_BYTES; a frame that does not fit is dropped and the caller told so.
+     * Only bulk senders that ask for it wait for room, on their own thread.
+     */
+    @Override
+    public void broadcastMessage(Message message) {
+        final ByteBuffer frame = encodeFrame(message);
+        for (Peer peer : peers) peer.send(frame.duplicate(), 0);
+    }
+
+    @Override
+    public boolean sendMessage(String peerId, Message message) { return sendMessage(peerId, message, 0); }
+
+    @Override
+    public boolean sendMessage(String peerId, Message message, long waitMillis) {
+        Peer peer = peersById.get(peerId);
+        if (peer == null) {
+            System.out.println("PortLink: no connection known for " + peerId);
+            return false;
+        }
+        return peer.send(encodeFrame(message), waitMillis);
+    }
+
+    private static ByteBuffer encodeFrame(Message message) {
+        ByteBuffer body = MessageCodec.encode(message);
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + body.remaining());
+        frame.putInt(body.remaining()).put(body).flip();
+        return frame;
+    }
+
+    private static Message decodeFrame(ByteBuffer body) {
+        try {
+            return MessageCodec.decode(body);
+        } catch (RuntimeException e) {
             System.out.println(e);
+            return null;
         }
     }
 
-    private void handleMessage(Socket socket) {
-        try (ObjectInputStream ois = new ObjectInputStream(socket.getInputStream())) {
-            Object received = ois.readObject();
-            if (received instanceof Message) {
-                inbound.put((Message) received);
+    private void selectorLoop() {
+        while (selector.isOpen()) {
+            try {
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) task.run();
+
+                long now = System.currentTimeMillis();
+                long nextWake = now + RECONNECT_MAX_MILLIS;
+                for (Peer peer : peers) nextWake = Math.min(nextWake, peer.tick(now));
+                if (READ_TIMEOUT_MILLIS > 0) {
+                    if (now >= nextSweepAt) closeIdleReaders(now);
+                    nextWake = Math.min(nextWake, nextSweepAt);
+                }
+
+                selector.select(Math.max(1L, nextWake - System.currentTimeMillis()));
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isAcceptable()) accept(key);
+                        else if (key.attachment() instanceof Peer peer) {
+                            if (peer.channel == key.channel()) peer.onReady(key);
+                            else closeQuietly(key.channel());
+                        }
+                        else if (key.attachment() instanceof FrameReader reader) reader.onReadable(key);
+                    } catch (IOException | CancelledKeyException e) {
+                        if (key.attachment() instanceof Peer peer) peer.disconnect(e);
+                        else closeQuietly(key.channel());
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println(e);
             }
-        }catch (IOException | ClassNotFoundException e) {
-        System.out.println(e);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
         }
     }
 
-    public void broadcastMessage(Message message) {
-        for (int targetPort : peerPorts) {
-            try (
-                Socket socket = new Socket("localhost", targetPort);
-                ObjectOutputStream oos = new ObjectOutputStream(socket.getOutputStream())
-            ) {
-                oos.writeObject(message);
-                oos.flush();
+    private void accept(SelectionKey key) throws IOException {
+        SocketChannel client = ((ServerSocketChannel) key.channel()).accept();
+        if (client == null) return;
+        client.configureBlocking(false);
+        client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        client.register(selector, SelectionKey.OP_READ, new FrameReader());
+    }
+
+    private void closeIdleReaders(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof FrameReader reader && now - reader.lastReadAt >= READ_TIMEOUT_MILLIS) {
+                System.out.println("PortLink: closing connection idle for " + (now - reader.lastReadAt) + " ms");
+                closeQuietly(key.channel());
+            }
+        }
+        nextSweepAt = now + Math.max(1, READ_TIMEOUT_MILLIS / 3);
+    }
+
+    /*
+     * Ties a HELLO's sender to the endpoint it listens on: by id when the peer set names
+     * it, otherwise by the advertised port, preferring the endpoint on the host the
+     * connection came from.
+     */
+    private void registerPeer(Message hello, InetAddress from) {
+        Peer match = null;
+        for (Peer peer : peers) {
+            NodeConfigLoader.Endpoint endpoint = peer.endpoint;
+            if (hello.getSenderId().equals(endpoint.id())) {
+                match = peer;
+                break;
+            }
+            if (endpoint.id() == null && endpoint.port() == hello.getRound() && (match == null || peer.isAt(from))) match = peer;
+        }
+        if (match != null && peersById.get(hello.getSenderId()) != match) peersById.put(hello.getSenderId(), match);
+    }
+
+    /* A peer named in nodes.csv is reachable by id before its first HELLO arrives. */
+    private void nameById(Peer peer) {
+        if (peer.endpoint.id() != null) peersById.put(peer.endpoint.id(), peer);
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /*
+     * The read buffer only grows, by doubling, once the bytes of a larger frame fill it, so
+     * a length header alone reserves nothing. It drops back to READ_BUFFER_BYTES once the
+     * large frame has been consumed.
+     */
+    private final class FrameReader {
+        private ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        private boolean greeted;
+        private LongAdder bytesReceived;
+        private LongAdder messagesReceived;
+        private long lastReadAt = System.currentTimeMillis();
+
+        void onReadable(SelectionKey key) throws IOException {
+            SocketChannel channel = (SocketChannel) key.channel();
+            int read = channel.read(buffer);
+            if (read < 0) {
+                closeQuietly(channel);
+                return;
+            }
+            lastReadAt = System.currentTimeMillis();
+            buffer.flip();
+            while (buffer.remaining() >= Integer.BYTES) {
+                int length = buffer.getInt(buffer.position());
+                if (length < 0 || length > (greeted ? MAX_FRAME_BYTES : MAX_GREETING_FRAME_BYTES)) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (buffer.remaining() < Integer.BYTES + length) break;
+                buffer.getInt();
+                ByteBuffer body = buffer.slice(buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                if (bytesReceived != null) {
+                    bytesReceived.add(Integer.BYTES + length);
+                    messagesReceived.increment();
+                }
+                Message message = decodeFrame(body);
+                if (message == null) continue;
+                if (message.getType() != Message.Type.HELLO) {
+                    inbound.offer(message);
+                    continue;
+                }
+                registerPeer(message, ((InetSocketAddress) channel.getRemoteAddress()).getAddress());
+                greeted = true;
+                if (bytesReceived != null) continue;
+                String label = "{peer=\"" + message.getSenderId() + "\"}";
+                bytesReceived = metrics.counter("portlink_bytes_received_total" + label);
+                messagesReceived = metrics.counter("portlink_messages_received_total" + label);
+            }
+            buffer.compact();
+            resize();
+        }
+
+        /* Called in write mode after compact(): position() bytes of a partial frame are pending. */
+        private void resize() {
+            int pending = buffer.position();
+            int frame = pending < Integer.BYTES ? 0 : Integer.BYTES + buffer.getInt(0);
+            int capacity = buffer.capacity();
+            if (pending == capacity) {
+                capacity = (int) Math.min((long) capacity * 2, frame);
+            } else if (capacity > READ_BUFFER_BYTES && frame <= READ_BUFFER_BYTES) {
+                capacity = READ_BUFFER_BYTES;
+            } else {
+                return;
+            }
+            ByteBuffer resized = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            resized.put(buffer);
+            buffer = resized;
+        }
+    }
+
+    private final class Peer {
+        private volatile NodeConfigLoader.Endpoint endpoint;
+        private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition drained = lock.newCondition();
+        private final LongAdder bytesSent;
+        private final LongAdder messagesSent;
+        private final LongAdder dropped;
+        private final LongAdder connects;
+        private long pendingBytes;
+        private SocketChannel channel;
+        private InetSocketAddress address;
+        private volatile boolean connected;
+        private volatile boolean closed;
+        private long connectStartedAt;
+        private volatile long lastProgressAt;
+        private long nextConnectAt;
+        private long backoffMillis = RECONNECT_MIN_MILLIS;
+
+        Peer(NodeConfigLoader.Endpoint endpoint) {
+            this.endpoint = endpoint;
+            String label = "{peer=\"" + (endpoint.host().equals("localhost") ? String.valueOf(endpoint.port()) : endpoint.address()) + "\"}";
+            this.bytesSent = metrics.counter("portlink_bytes_sent_total" + label);
+            this.messagesSent = metrics.counter("portlink_messages_sent_total" + label);
+            this.dropped = metrics.counter("portlink_messages_dropped_total" + label);
+            this.connects = metrics.counter("portlink_connects_total" + label);
+        }
+
+        boolean send(ByteBuffer frame, long waitMillis) {
+            if (closed) return false;
+            if (enqueue(frame, waitMillis)) return true;
+            dropped.increment();
+            System.out.println("PortLink: dropped message to " + endpoint.address() + " (outbound buffer full)");
+            return false;
+        }
+
+        boolean isAt(InetAddress from) {
+            InetSocketAddress resolved = address;
+            return resolved != null && from.equals(resolved.getAddress());
+        }
+
+        /* Dials, times out connects and stalled writes, and sends keepalives; returns when it next needs a look. */
+        long tick(long now) {
+            if (closed) return Long.MAX_VALUE;
+            if (channel == null) {
+                if (now < nextConnectAt) return nextConnectAt;
+                connect(now);
+                return now + CONNECT_TIMEOUT_MILLIS;
+            }
+            if (!connected) {
+                if (now - connectStartedAt < CONNECT_TIMEOUT_MILLIS) return connectStartedAt + CONNECT_TIMEOUT_MILLIS;
+                disconnect(new SocketTimeoutException("connect timed out after " + CONNECT_TIMEOUT_MILLIS + " ms"));
+                return nextConnectAt;
+            }
+            if (READ_TIMEOUT_MILLIS <= 0) return Long.MAX_VALUE;
+            boolean pending;
+            lock.lock();
+            try {
+                pending = !outbound.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+            long idle = now - lastProgressAt;
+            if (pending) {
+                if (idle < READ_TIMEOUT_MILLIS) return lastProgressAt + READ_TIMEOUT_MILLIS;
+                disconnect(new SocketTimeoutException("no write progress for " + idle + " ms"));
+                return nextConnectAt;
+            }
+            long keepalive = Math.max(1, READ_TIMEOUT_MILLIS / 3);
+            if (idle < keepalive) return lastProgressAt + keepalive;
+            ByteBuffer hello = encodeFrame(Message.hello(myId, myPort));
+            lock.lock();
+            try {
+                outbound.add(hello);
+                pendingBytes += hello.remaining();
+            } finally {
+                lock.unlock();
+            }
+            lastProgressAt = now;
+            updateInterest();
+            return now + keepalive;
+        }
+
+        boolean enqueue(ByteBuffer frame, long waitMillis) {
+            lock.lock();
+            try {
+                long deadline = System.currentTimeMillis() + waitMillis;
+                while (connected && pendingBytes + frame.remaining() > MAX_PENDING_BYTES) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) break;
+                    try {
+                        drained.await(remaining, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                }
+                if (pendingBytes + frame.remaining() > MAX_PENDING_BYTES) return false;
+                if (outbound.isEmpty()) lastProgressAt = System.currentTimeMillis();
+                outbound.add(frame);
+                pendingBytes += frame.remaining();
+            } finally {
+                lock.unlock();
+            }
+            selectorTasks.add(this::updateInterest);
+            selector.wakeup();
+            return true;
+        }
+
+        void connect(long now) {
+            connectStartedAt = now;
+            try {
+                address = new InetSocketAddress(endpoint.host(), endpoint.port());
+                if (address.isUnresolved()) throw new UnknownHostException(endpoint.host());
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                if (localAddress != null) channel.bind(new InetSocketAddress(localAddress, 0));
+                channel.register(selector, SelectionKey.OP_CONNECT, this);
+                channel.connect(address);
             } catch (IOException e) {
-                System.out.println(e);
+                disconnect(e);
+            }
+        }
+
+        void onReady(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                channel.finishConnect();
+                ByteBuffer hello = encodeFrame(Message.hello(myId, myPort));
+                lock.lock();
+                try {
+                    connected = true;
+                    outbound.addFirst(hello);
+                    pendingBytes += hello.remaining();
+                } finally {
+                    lock.unlock();
+                }
+                lastProgressAt = System.currentTimeMillis();
+                backoffMillis = RECONNECT_MIN_MILLIS;
+                connects.increment();
+                updateInterest();
+                return;
+            }
+            if (key.isReadable() && channel.read(ByteBuffer.allocate(1)) < 0) {
+                throw new EOFException("Peer " + endpoint.address() + " closed connection");
+            }
+            if (key.isWritable()) flush();
+        }
+
+        private void flush() throws IOException {
+            lock.lock();
+            try {
+                while (!outbound.isEmpty()) {
+                    ByteBuffer head = outbound.peek();
+                    if (channel.write(head) > 0) lastProgressAt = System.currentTimeMillis();
+                    if (head.hasRemaining()) break;
+                    outbound.poll();
+                    pendingBytes -= head.limit();
+                    bytesSent.add(head.limit());
+                    messagesSent.increment();
+                }
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            updateInterest();
+        }
+
+        private void updateInterest() {
+            if (channel == null || !connected) return;
+            SelectionKey key = channel.keyFor(selector);
+            if (key == null || !key.isValid()) return;
+            boolean hasPending;
+            lock.lock();
+            try {
+                hasPending = !outbound.isEmpty();
+            } finally {
+                lock.unlock();
+            }
+            key.interestOps(SelectionKey.OP_READ | (hasPending ? SelectionKey.OP_WRITE : 0));
+        }
+
+        void disconnect(Exception cause) {
+            if (connected || cause instanceof SocketTimeoutException) {
+                System.out.println("PortLink: lost peer " + endpoint.address() + ": " + cause);
+            }
+            if (channel != null) closeQuietly(channel);
+            channel = null;
+            lock.lock();
+            try {
+                connected = false;
+                ByteBuffer head = outbound.peek();
+                if (head != null) head.rewind();
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            nextConnectAt = System.currentTimeMillis() + backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+            backoffMillis = Math.min(backoffMillis * 2, RECONNECT_MAX_MILLIS);
+        }
+
+        /* Leaves the pool: the connection and anything still queued for it are dropped. */
+        void close() {
+            closed = true;
+            disconnect(new ClosedChannelException());
+            lock.lock();
+            try {
+                outbound.clear();
+                pendingBytes = 0;
+            } finally {
+                lock.unlock();
             }
         }
     }
-}
\ No newline at end of file
+}
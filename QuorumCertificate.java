@@ -0,0 +1,38 @@
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Proof that a block was accepted: the VOTE signatures of a quorum of validators over
+ * (round, view, blockHash). The leader assembles it from the votes it collected, followers
+ * check it instead of every individual vote, and it is stored with the committed block.
+ * The same shape over PREPARE signatures proves a block was prepared in that view.
+ */
+public class QuorumCertificate implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    private final int round;
+    private final int view;
+    private final String blockHash;
+    private final transient Map<String, String> signatures;
+
+    public QuorumCertificate(int round, int view, String blockHash, Map<String, String> signatures) {
+        this.round = round;
+        this.view = view;
+        this.blockHash = blockHash;
+        this.signatures = Collections.unmodifiableMap(new LinkedHashMap<>(signatures));
+    }
+
+    public int getRound() { return round; }
+
+    public int getView() { return view; }
+
+    public String getBlockHash() { return blockHash; }
+
+    public Map<String, String> getSignatures() { return signatures; }
+
+    public int size() { return signatures.size(); }
+
+    private Object writeReplace() { return MessageCodec.Serialized.of(this); }
+}
@@ -0,0 +1,60 @@
+import java.security.*;
+
+/*
+ * The signature algorithm behind a validator's key pair. Signing and verification pick
+ * the scheme from the key, so validators with different schemes can share a chain. Key
+ * files record it as a "<SCHEME>:" prefix (files without one are RSA) and every block
+ * records the scheme its proposer signed it with.
+ *
+ *   RSA       2048-bit keys, SHA256withRSA, 256-byte signatures
+ *   ED25519   the JDK's Ed25519, 64-byte signatures, far cheaper to sign
+ *
+ *   -Dcrypto.scheme=RSA|ED25519   scheme for newly generated keys (default RSA)
+ */
+public enum SignatureScheme {
+    RSA("RSA", "SHA256withRSA", 2048),
+    ED25519("Ed25519", "Ed25519", 0);
+
+    private final String keyAlgorithm;
+    private final String signatureAlgorithm;
+    private final int keySize;
+    private final ThreadLocal<Signature> signature;
+
+    SignatureScheme(String keyAlgorithm, String signatureAlgorithm, int keySize) {
+        this.keyAlgorithm = keyAlgorithm;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.keySize = keySize;
+        this.signature = ThreadLocal.withInitial(() -> {
+            try {
+                return Signature.getInstance(signatureAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    public static SignatureScheme fromSystemProperties() {
+        return valueOf(System.getProperty("crypto.scheme", "RSA").toUpperCase());
+    }
+
+    public static SignatureScheme of(Key key) {
+        return switch (key.getAlgorithm()) {
+            case "RSA" -> RSA;
+            case "EdDSA", "Ed25519" -> ED25519;
+            default -> throw new IllegalArgumentException("Unsupported key algorithm " + key.getAlgorithm());
+        };
+    }
+
+    public String getSignatureAlgorithm() { return signatureAlgorithm; }
+
+    public KeyPair generateKeyPair() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(keyAlgorithm);
+        if (keySize > 0) generator.initialize(keySize);
+        return generator.generateKeyPair();
+    }
+
+    public KeyFactory keyFactory() throws GeneralSecurityException { return KeyFactory.getInstance(keyAlgorithm); }
+
+    /* This thread's Signature for the scheme; callers init it before each use. */
+    Signature signature() { return signature.get(); }
+}
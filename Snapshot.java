@@ -0,0 +1,85 @@
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Compact chain state at a checkpoint block: its height and hash, the model it trains,
+ * the lineage of model updates up to it and the validator set it was agreed under.
+ * Every validator derives the same snapshot from its own chain and signs its digest
+ * (CHECKPOINT); once 2f+1 signatures agree the snapshot is stable, and a node can boot
+ * from it or hand it to a peer without the blocks before it.
+ *
+ * lineage is a running hash over the dataHash of every block since genesis, and
+ * updates counts the transactions those blocks carried. recent holds each submitter's
+ * transactions (hash to timestamp) still within the replay window of its newest one,
+ * so replays stay refused past the snapshot.
+ */
+public class Snapshot implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    private final int index;
+    private final String blockHash;
+    private final String modelHash;
+    private final String lineage;
+    private final long updates;
+    private final transient Map<String, Map<String, Long>> recent;
+    private final transient List<String> validators;
+    private final String validatorsHash;
+    private final int faulty;
+    private final transient Map<String, String> signatures;
+
+    public Snapshot(int index, String blockHash, String modelHash, String lineage, long updates, Map<String, ? extends Map<String, Long>> recent,
+                    List<String> validators, String validatorsHash, int faulty, Map<String, String> signatures) {
+        this.index = index;
+        this.blockHash = blockHash;
+        this.modelHash = modelHash;
+        this.lineage = lineage;
+        this.updates = updates;
+        Map<String, Map<String, Long>> sorted = new TreeMap<>();
+        recent.forEach((submitter, txs) -> sorted.put(submitter, Collections.unmodifiableMap(new TreeMap<>(txs))));
+        this.recent = Collections.unmodifiableMap(sorted);
+        this.validators = List.copyOf(validators);
+        this.validatorsHash = validatorsHash;
+        this.faulty = faulty;
+        this.signatures = Collections.unmodifiableMap(new LinkedHashMap<>(signatures));
+    }
+
+    public Snapshot withSignatures(Map<String, String> signatures) {
+        return new Snapshot(index, blockHash, modelHash, lineage, updates, recent, validators, validatorsHash, faulty, signatures);
+    }
+
+    /* What validators sign; covers everything but the signatures. */
+    public String digest() {
+        return CryptoUtils.calculateHash("SNAPSHOT" + index + ":" + blockHash + ":" + modelHash + ":" + lineage + ":" + updates
+                                         + ":" + recent + ":" + String.join(",", validators) + ":" + validatorsHash + ":" + faulty);
+    }
+
+    public static String nextLineage(String lineage, Block block) {
+        return CryptoUtils.calculateHash(lineage + block.getDataHash());
+    }
+
+    public int getIndex() { return index; }
+
+    public String getBlockHash() { return blockHash; }
+
+    public String getModelHash() { return modelHash; }
+
+    public String getLineage() { return lineage; }
+
+    public long getUpdates() { return updates; }
+
+    public Map<String, Map<String, Long>> getRecent() { return recent; }
+
+    public List<String> getValidators() { return validators; }
+
+    public String getValidatorsHash() { return validatorsHash; }
+
+    public int getFaulty() { return faulty; }
+
+    public Map<String, String> getSignatures() { return signatures; }
+
+    private Object writeReplace() { return MessageCodec.Serialized.of(this); }
+}
@@ -0,0 +1,132 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/*
+ * Catch-up for nodes that fell behind, e.g. after a dropped VOTE or a restart. The
+ * lagging node sends SYNC_REQUEST with its height. The peer streams up to RANGE_BLOCKS
+ * committed blocks back as SYNC_BLOCKS batches of BATCH_BLOCKS. Every block carries
+ * the quorum certificate it was committed with. Within a batch, proposer signatures and
+ * certificates are checked in parallel on the verify pool. The verified prefix is then
+ * handed to the consensus state in order, and the next range is requested while the
+ * peer is still ahead. A peer that has compacted the requested blocks away sends its
+ * stable Snapshot and checkpoint block first, and streams from there.
+ *
+ *   -Dsync.batchBlocks=<n>   blocks per SYNC_BLOCKS message (default 256)
+ *   -Dsync.rangeBlocks=<n>   blocks streamed per SYNC_REQUEST (default 16384)
+ */
+public class StateSync {
+    private static final int BATCH_BLOCKS = Integer.getInteger("sync.batchBlocks", 256);
+    private static final int RANGE_BLOCKS = Integer.getInteger("sync.rangeBlocks", 16384);
+    private static final long RETRY_MILLIS = 2000L;
+    private static final long SEND_WAIT_MILLIS = 2000L;
+
+    private final String myId;
+    private final Blockchain blockchain;
+    private final Transport network;
+    private final NodeExecutors executors;
+    private final Executor applier;
+    private final Consumer<List<Block>> apply;
+    private final BiConsumer<Snapshot, Block> install;
+    private final Object requestLock = new Object();
+    private long requestedAt;
+    private int requestedUntil;
+
+    public StateSync(String myId, Blockchain blockchain, Transport network, NodeExecutors executors,
+                     Consumer<List<Block>> apply, BiConsumer<Snapshot, Block> install) {
+        this.myId = myId;
+        this.blockchain = blockchain;
+        this.network = network;
+        this.executors = executors;
+        this.apply = apply;
+        this.install = install;
+        this.applier = executors.serial();
+    }
+
+    /* A message from peerId shows it has committed past our height. */
+    public void behind(String peerId) { request(peerId, false); }
+
+    public void request(String peerId, boolean force) {
+        if (peerId == null || peerId.equals(myId)) return;
+        final int from = blockchain.getHeight();
+        synchronized (requestLock) {
+            long now = System.currentTimeMillis();
+            if (!force && now - requestedAt < RETRY_MILLIS) return;
+            requestedAt = now;
+            requestedUntil = from + RANGE_BLOCKS;
+        }
+        network.sendMessage(peerId, Message.syncRequest(myId, from));
+    }
+
+    public void onRequest(Message msg) {
+        executors.io().execute(() -> {
+            int from = Math.max(1, msg.getRound());
+            final int height = blockchain.getHeight();
+            if (from < blockchain.getFirstIndex()) {
+                final Snapshot snapshot = blockchain.getSnapshot();
+                final Block anchor = snapshot == null ? null : blockchain.getBlock(snapshot.getIndex());
+                if (anchor == null || !network.sendMessage(msg.getSenderId(), Message.snapshot(myId, height, snapshot, anchor), SEND_WAIT_MILLIS)) return;
+                from = snapshot.getIndex() + 1;
+            }
+            final int until = Math.min(height, from + RANGE_BLOCKS);
+            for (int start = from; start < until; start += BATCH_BLOCKS) {
+                List<Block> batch = new ArrayList<>(Math.min(BATCH_BLOCKS, until - start));
+                for (int i = start; i < Math.min(until, start + BATCH_BLOCKS); i++) batch.add(blockchain.getBlock(i));
+                if (!network.sendMessage(msg.getSenderId(), Message.syncBlocks(myId, height, batch), SEND_WAIT_MILLIS)) return;
+            }
+        });
+    }
+
+    public void onBlocks(Message msg) {
+        applier.execute(() -> {
+            final List<Block> blocks = msg.getBlocks();
+            if (blocks.isEmpty() || blocks.get(blocks.size() - 1).getIndex() < blockchain.getHeight()) return;
+
+            List<CompletableFuture<Boolean>> checks = new ArrayList<>(blocks.size());
+            for (Block block : blocks) checks.add(CompletableFuture.supplyAsync(() -> isCertified(block), executors.verify()));
+            int verified = 0;
+            while (verified < blocks.size() && checks.get(verified).join()) verified++;
+            if (verified < blocks.size()) {
+                System.out.println("Sync: block " + blocks.get(verified).getIndex() + " from " + msg.getSenderId() + " failed verification");
+            }
+            if (verified == 0) return;
+
+            apply.accept(blocks.subList(0, verified));
+            final int height = blockchain.getHeight();
+            boolean rangeDone;
+            synchronized (requestLock) {
+                rangeDone = height >= requestedUntil;
+            }
+            if (height < msg.getRound() && rangeDone) request(msg.getSenderId(), true);
+        });
+    }
+
+    public void onSnapshot(Message msg) {
+        applier.execute(() -> {
+            final Snapshot snapshot = msg.getSnapshot();
+            final Block anchor = msg.getBlocks().get(0);
+            if (snapshot.getIndex() < blockchain.getHeight()) return;
+            if (anchor.getIndex() != snapshot.getIndex() || !anchor.getHash().equals(snapshot.getBlockHash())
+                    || !isCertified(anchor) || !blockchain.isValidSnapshot(snapshot)) {
+                System.out.println("Sync: snapshot " + snapshot.getIndex() + " from " + msg.getSenderId() + " failed verification");
+                return;
+            }
+            install.accept(snapshot, anchor);
+            synchronized (requestLock) {
+                requestedUntil = blockchain.getHeight() + RANGE_BLOCKS;
+            }
+        });
+    }
+
+    private boolean isCertified(Block block) {
+        QuorumCertificate certificate = block.getCertificate();
+        return certificate != null
+            && certificate.getRound() == block.getIndex()
+            && certificate.getBlockHash().equals(block.getHash())
+            && blockchain.isSigned(block)
+            && blockchain.isValidCertificate(certificate);
+    }
+}
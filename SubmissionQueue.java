@@ -0,0 +1,439 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/*
+ * Model updates submitted by programs rather than typed at the terminal. submit() returns
+ * at once with a Ticket whose future completes with the committed block carrying the
+ * update. Files wait in a bounded queue while worker threads chunk them into the chunk
+ * store and sign their transactions. When the queue is full, or too many accepted updates
+ * have not committed yet, submit() refuses with RejectedExecutionException instead of
+ * blocking, and the caller retries later. An update not committed within the deadline
+ * fails its ticket and frees its slot; its transaction may still commit later.
+ *
+ * Two front ends feed the same queue. An HTTP endpoint on the loopback interface:
+ *
+ *   POST /submit?path=<file>     a file already on this host
+ *   POST /submit                 the request body is the file
+ *   GET  /submit/<ticket>        the ticket's state
+ *
+ * POST answers 202 once accepted, or with ?wait=<seconds> 200 once committed, and 503
+ * with Retry-After when refused. And a spool directory: a file appearing in it is
+ * submitted and moved to done/ when committed, or failed/ if it could not be read. One
+ * that missed the deadline goes to expired/ rather than back to the spool, since its
+ * transaction may still commit; resubmitting it would commit the update twice. Writers
+ * should create files under a name starting with '.' or ending in .tmp and rename them
+ * when complete. Files still in the spool are submitted again on restart.
+ *
+ *   -Dsubmit.queue=<n>          files waiting to be chunked (default 1024)
+ *   -Dsubmit.maxPending=<n>     accepted updates not yet committed (default 8192)
+ *   -Dsubmit.workers=<n>        chunking threads (default 2)
+ *   -Dsubmit.deadlineSeconds=<s> time an accepted update has to commit (default 600)
+ *   -Dsubmit.port=<p>           serve http://localhost:<p>/submit (default off)
+ *   -Dsubmit.spool=<dir>        spool directory (default off)
+ *   -Dsubmit.spoolMillis=<ms>   spool scan interval (default 500)
+ */
+public class SubmissionQueue {
+    private static final int RECENT_TICKETS = 4096;
+
+    public enum State { QUEUED, PENDING, COMMITTED, FAILED }
+
+    public static final class Ticket {
+        private final long id;
+        private final Path file;
+        private final long acceptedNanos = System.nanoTime();
+        private final CompletableFuture<Block> committed = new CompletableFuture<>();
+        private volatile Transaction tx;
+        private volatile ScheduledFuture<?> deadline;
+
+        private Ticket(long id, Path file) {
+            this.id = id;
+            this.file = file;
+        }
+
+        public long getId() { return id; }
+
+        public Path getFile() { return file; }
+
+        /* Null until the file has been chunked and signed. */
+        public Transaction getTransaction() { return tx; }
+
+        public CompletableFuture<Block> committed() { return committed; }
+
+        public State getState() {
+            if (committed.isCompletedExceptionally()) return State.FAILED;
+            if (committed.isDone()) return State.COMMITTED;
+            return tx == null ? State.QUEUED : State.PENDING;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder("ticket=" + id + " state=" + getState());
+            Transaction t = tx;
+            if (t != null) out.append(" tx=").append(t.getHash());
+            if (getState() == State.COMMITTED) out.append(" block=").append(committed.join().getIndex());
+            if (getState() == State.FAILED) {
+                try {
+                    committed.join();
+                } catch (CompletionException e) {
+                    out.append(" error=").append(e.getCause());
+                }
+            }
+            return out.toString();
+        }
+    }
+
+    private final String myId;
+    private final Blockchain blockchain;
+    private final ChunkStore chunkStore;
+    private final Consumer<Transaction> submitter;
+    private final NodeExecutors executors;
+    private final Path incomingDir;
+    private final int maxPending;
+    private final long deadlineMillis;
+    private final BlockingQueue<Ticket> queue;
+    private final Map<String, Ticket> byTx = new ConcurrentHashMap<>();
+    private final Map<Long, Ticket> active = new ConcurrentHashMap<>();
+    private final Map<Long, Ticket> recent = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Ticket> eldest) { return size() > RECENT_TICKETS; }
+    };
+    private final Set<Path> spooled = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    private final LongAdder accepted;
+    private final LongAdder rejected;
+    private final LongAdder failed;
+    private final LongAdder expired;
+    private final LongAdder committedUpdates;
+    private final Histogram commitMicros;
+    private HttpServer server;
+
+    public SubmissionQueue(String myId, Blockchain blockchain, ChunkStore chunkStore, Consumer<Transaction> submitter,
+                           NodeExecutors executors, Metrics metrics, Path dataDir, int capacity, int maxPending,
+                           long deadlineMillis) {
+        if (capacity < 1 || maxPending < 1 || deadlineMillis < 1) throw new IllegalArgumentException();
+        this.myId = myId;
+        this.blockchain = blockchain;
+        this.chunkStore = chunkStore;
+        this.submitter = submitter;
+        this.executors = executors;
+        this.incomingDir = dataDir.resolve("incoming");
+        this.maxPending = maxPending;
+        this.deadlineMillis = deadlineMillis;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.accepted = metrics.counter("submit_accepted_total");
+        this.rejected = metrics.counter("submit_rejected_total");
+        this.failed = metrics.counter("submit_failed_total");
+        this.expired = metrics.counter("submit_expired_total");
+        this.committedUpdates = metrics.counter("submit_committed_total");
+        this.commitMicros = metrics.histogram("submit_commit_latency_micros");
+        metrics.gauge("submit_queue_depth", queue::size);
+        metrics.gauge("submit_outstanding", outstanding::get);
+        blockchain.onCommit(this::onCommit);
+    }
+
+    public static SubmissionQueue fromSystemProperties(String myId, Blockchain blockchain, ChunkStore chunkStore,
+                                                       Consumer<Transaction> submitter, NodeExecutors executors,
+                                                       Metrics metrics, Path dataDir) {
+        SubmissionQueue submissions = new SubmissionQueue(myId, blockchain, chunkStore, submitter, executors, metrics, dataDir,
+                                                          Integer.getInteger("submit.queue", 1024),
+                                                          Integer.getInteger("submit.maxPending", 8192),
+                                                          Long.getLong("submit.deadlineSeconds", 600L) * 1000);
+        submissions.startWorkers(Integer.getInteger("submit.workers", 2));
+        Integer port = Integer.getInteger("submit.port");
+        if (port != null) submissions.serve(port);
+        String spool = System.getProperty("submit.spool");
+        if (spool != null) submissions.watch(Path.of(spool), Long.getLong("submit.spoolMillis", 500L));
+        return submissions;
+    }
+
+    public Ticket submit(Path file) {
+        if (outstanding.incrementAndGet() > maxPending) {
+            outstanding.decrementAndGet();
+            rejected.increment();
+            throw new RejectedExecutionException("too many pending updates (" + maxPending + ")");
+        }
+        Ticket ticket = new Ticket(nextId.getAndIncrement(), file);
+        active.put(ticket.id, ticket);
+        if (!queue.offer(ticket)) {
+            active.remove(ticket.id);
+            outstanding.decrementAndGet();
+            rejected.increment();
+            throw new RejectedExecutionException("submission queue full");
+        }
+        ticket.deadline = executors.scheduler().schedule(() -> expire(ticket), deadlineMillis, TimeUnit.MILLISECONDS);
+        accepted.increment();
+        return ticket;
+    }
+
+    /* The ticket with this id, if it is still in flight or among the recently finished. */
+    public Ticket getTicket(long id) {
+        Ticket ticket = active.get(id);
+        if (ticket != null) return ticket;
+        synchronized (recent) {
+            return recent.get(id);
+        }
+    }
+
+    public boolean isFull() { return queue.remainingCapacity() == 0 || outstanding.get() >= maxPending; }
+
+    public void startWorkers(int workers) {
+        for (int i = 0; i < workers; i++) {
+            executors.startLoop("submit-" + myId + "-" + i, () -> {
+                while (true) {
+                    Ticket ticket;
+                    try {
+                        ticket = queue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                    prepare(ticket);
+                }
+            });
+        }
+    }
+
+    private void prepare(Ticket ticket) {
+        if (ticket.committed.isDone()) return;
+        try {
+            Transaction tx = blockchain.newTransaction(chunkStore.ingest(ticket.file));
+            ticket.tx = tx;
+            byTx.put(tx.getHash(), ticket);
+            if (ticket.committed.isDone()) {
+                byTx.remove(tx.getHash(), ticket);
+                return;
+            }
+            submitter.accept(tx);
+        } catch (IOException | RuntimeException e) {
+            failed.increment();
+            finish(ticket, null, e);
+        }
+    }
+
+    private void onCommit(Block block) {
+        List<Transaction> transactions = block.getTransactions();
+        if (transactions == null || byTx.isEmpty()) return;
+        for (Transaction tx : transactions) {
+            Ticket ticket = byTx.remove(tx.getHash());
+            if (ticket == null) continue;
+            committedUpdates.increment();
+            commitMicros.record((System.nanoTime() - ticket.acceptedNanos) / 1000);
+            /* Completion runs the caller's callbacks, which must not hold up the commit path. */
+            executors.io().execute(() -> finish(ticket, block, null));
+        }
+    }
+
+    /* A ticket still chunking or waiting for its block fails; one already claimed by a commit is left to it. */
+    private void expire(Ticket ticket) {
+        if (!active.containsKey(ticket.id)) return;
+        Transaction tx = ticket.tx;
+        if (tx != null && !byTx.remove(tx.getHash(), ticket)) return;
+        queue.remove(ticket);
+        expired.increment();
+        finish(ticket, null, new TimeoutException("not committed within " + deadlineMillis / 1000 + " s"));
+    }
+
+    /* Runs once per ticket, whichever of commit, failure or deadline gets there first. */
+    private void finish(Ticket ticket, Block block, Throwable error) {
+        if (active.remove(ticket.id) == null) return;
+        ScheduledFuture<?> deadline = ticket.deadline;
+        if (deadline != null) deadline.cancel(false);
+        synchronized (recent) {
+            recent.put(ticket.id, ticket);
+        }
+        outstanding.decrementAndGet();
+        if (error == null) ticket.committed.complete(block);
+        else ticket.committed.completeExceptionally(error);
+    }
+
+    public void serve(int port) {
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.setExecutor(executors.io());
+            server.createContext("/submit", exchange -> {
+                try {
+                    if ("POST".equals(exchange.getRequestMethod())) post(exchange);
+                    else if ("GET".equals(exchange.getRequestMethod())) get(exchange);
+                    else reply(exchange, 405, "method not allowed");
+                } catch (IOException | RuntimeException e) {
+                    System.out.println(e);
+                    reply(exchange, 500, e.toString());
+                }
+            });
+            server.start();
+            System.out.println("Submissions on http://localhost:" + port + "/submit");
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    private void post(HttpExchange exchange) throws IOException {
+        Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+        long waitSeconds;
+        try {
+            waitSeconds = params.containsKey("wait") ? Long.parseLong(params.get("wait")) : 0;
+        } catch (NumberFormatException e) {
+            waitSeconds = -1;
+        }
+        if (waitSeconds < 0) {
+            reply(exchange, 400, "wait must be a whole number of seconds");
+            return;
+        }
+        if (isFull()) {
+            rejected.increment();
+            refuse(exchange, "busy");
+            return;
+        }
+        Path file;
+        boolean upload = !params.containsKey("path");
+        if (upload) {
+            Files.createDirectories(incomingDir);
+            file = incomingDir.resolve(UUID.randomUUID() + ".bin");
+            try (InputStream in = exchange.getRequestBody()) {
+                Files.copy(in, file);
+            }
+        } else {
+            file = Path.of(params.get("path"));
+            if (!Files.isRegularFile(file)) {
+                reply(exchange, 400, "no such file " + file);
+                return;
+            }
+        }
+
+        Ticket ticket;
+        try {
+            ticket = submit(file);
+        } catch (RejectedExecutionException e) {
+            if (upload) Files.deleteIfExists(file);
+            refuse(exchange, e.getMessage());
+            return;
+        }
+        if (upload) ticket.committed.whenComplete((_, _) -> deleteQuietly(file));
+
+        if (waitSeconds > 0) {
+            try {
+                ticket.committed.get(waitSeconds, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                // reported through the ticket state below
+            }
+        }
+        State state = ticket.getState();
+        reply(exchange, state == State.FAILED ? 500 : state == State.COMMITTED ? 200 : 202, ticket.toString());
+    }
+
+    private void get(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String id = path.substring(path.lastIndexOf('/') + 1);
+        Ticket ticket = null;
+        try {
+            ticket = getTicket(Long.parseLong(id));
+        } catch (NumberFormatException e) {
+            // falls through to 404
+        }
+        if (ticket == null) reply(exchange, 404, "unknown ticket " + id);
+        else reply(exchange, 200, ticket.toString());
+    }
+
+    private void refuse(HttpExchange exchange, String reason) throws IOException {
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        reply(exchange, 503, reason);
+    }
+
+    private static void reply(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] body = (text + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private static Map<String, String> params(String query) {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) return params;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq <= 0) continue;
+            params.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                       URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+
+    public void watch(Path spool, long intervalMillis) {
+        try {
+            Files.createDirectories(spool.resolve("done"));
+            Files.createDirectories(spool.resolve("failed"));
+            Files.createDirectories(spool.resolve("expired"));
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        executors.scheduler().scheduleWithFixedDelay(() -> scan(spool), 0, intervalMillis, TimeUnit.MILLISECONDS);
+        System.out.println("Watching " + spool + " for model updates");
+    }
+
+    private void scan(Path spool) {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(spool)) {
+            files = listing.filter(Files::isRegularFile)
+                           .filter(f -> !f.getFileName().toString().startsWith(".") && !f.getFileName().toString().endsWith(".tmp"))
+                           .filter(f -> !spooled.contains(f))
+                           .sorted()
+                           .toList();
+        } catch (IOException e) {
+            System.out.println(e);
+            return;
+        }
+        for (Path file : files) {
+            Ticket ticket;
+            try {
+                ticket = submit(file);
+            } catch (RejectedExecutionException e) {
+                return;
+            }
+            spooled.add(file);
+            ticket.committed.whenComplete((block, error) -> {
+                String outcome = error == null ? "done" : error instanceof TimeoutException ? "expired" : "failed";
+                Path target = spool.resolve(outcome).resolve(file.getFileName());
+                try {
+                    Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    System.out.println(e);
+                }
+                spooled.remove(file);
+            });
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    public void close() {
+        if (server != null) server.stop(0);
+    }
+}
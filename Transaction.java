@@ -0,0 +1,64 @@
+import java.io.Serializable;
+import java.security.PrivateKey;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * A single model update submitted by a hospital: the chunk manifest of its data file,
+ * signed by the submitter. The signed payload carries the manifest's size and chunk
+ * count next to its root, so no one can swap in another chunk list for the same root.
+ * Blocks commit batches of transactions through the Merkle root of their hashes.
+ * A submitter's timestamps strictly increase, and Blockchain only commits a transaction
+ * stamped within the replay window of its submitter's last committed one and not
+ * committed already, so none can be replayed.
+ */
+public class Transaction implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final AtomicLong lastTimestamp = new AtomicLong();
+
+    private final String submitterId;
+    private final long timestamp;
+    private final ChunkStore.Manifest manifest;
+    private final String dataHash;
+    private final String hash;
+    private final String signature;
+
+    public Transaction(String submitterId, long timestamp, ChunkStore.Manifest manifest, String hash, String signature) {
+        this.submitterId = submitterId;
+        this.timestamp = timestamp;
+        this.manifest = manifest;
+        this.dataHash = manifest.root();
+        this.hash = hash;
+        this.signature = signature;
+    }
+
+    public static Transaction sign(String submitterId, ChunkStore.Manifest manifest, PrivateKey privateKey) {
+        long timestamp = lastTimestamp.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis()));
+        String hash = CryptoUtils.calculateHash(payload(submitterId, timestamp, manifest.size(), manifest.chunks().size(), manifest.root()));
+        return new Transaction(submitterId, timestamp, manifest, hash, CryptoUtils.signData(hash, privateKey));
+    }
+
+    public static String merkleRoot(List<Transaction> transactions) {
+        byte[][] leaves = new byte[transactions.size()][];
+        for (int i = 0; i < leaves.length; i++) leaves[i] = CryptoUtils.fromHex(transactions.get(i).getHash());
+        return FileHasher.TREE_PREFIX + CryptoUtils.toHex(FileHasher.merkleRoot(leaves));
+    }
+
+    public String getSubmitterId() { return submitterId; }
+
+    public long getTimestamp() { return timestamp; }
+
+    public ChunkStore.Manifest getManifest() { return manifest; }
+
+    public String getDataHash() { return dataHash; }
+
+    public String getHash() { return hash; }
+
+    public String getSignature() { return signature; }
+
+    public String getPayload() { return payload(submitterId, timestamp, manifest.size(), manifest.chunks().size(), dataHash); }
+
+    private static String payload(String submitterId, long timestamp, long size, int chunks, String root) {
+        return submitterId + "|" + timestamp + "|" + size + "|" + chunks + "|" + root;
+    }
+}
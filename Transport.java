@@ -0,0 +1,18 @@
+/*
+ * How a node reaches its peers. PortLink carries frames over TCP between processes;
+ * LoopbackNetwork delivers messages between nodes sharing one JVM.
+ */
+public interface Transport {
+    void broadcastMessage(Message message);
+
+    /* Never blocks: false when the peer is unknown or its outbound buffer is full and the message was dropped. */
+    boolean sendMessage(String peerId, Message message);
+
+    /*
+     * For bulk replies (chunks, sync batches) sent from their own io task: waits up to
+     * waitMillis for room in the peer's outbound buffer before giving up on the message.
+     */
+    default boolean sendMessage(String peerId, Message message, long waitMillis) { return sendMessage(peerId, message); }
+
+    int getPortCount();
+}
@@ -0,0 +1,122 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/*
+ * Staged intake ahead of the consensus state machine. Stale messages, and copies of ones
+ * already verified, are dropped before any crypto runs; signature and hash checks run in
+ * parallel on the verify pool; verified messages are then handed to the state machine one
+ * at a time, in the order they arrived. A dedupe key is only recorded once its message
+ * has verified, so a forged or stale copy never shadows the genuine one; copies still in
+ * flight together are each verified, and the later ones dropped at the handoff.
+ */
+public class VerifyPipeline {
+    private static final int RECENT_KEYS = 65536;
+    private static final int MAX_IN_FLIGHT = 8192;
+
+    private record Pending(Message msg, String key, CompletableFuture<Boolean> verdict) {}
+
+    private final Predicate<Message> relevant;
+    private final Predicate<Message> authentic;
+    private final Consumer<Message> apply;
+    private final ExecutorService verifyPool;
+    private final BlockingQueue<Pending> ordered = new LinkedBlockingQueue<>(MAX_IN_FLIGHT);
+    private final Map<String, Boolean> recent = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) { return size() > RECENT_KEYS; }
+    };
+
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+
+    public VerifyPipeline(Predicate<Message> relevant, Predicate<Message> authentic,
+                          Consumer<Message> apply, ExecutorService verifyPool) {
+        this.relevant = relevant;
+        this.authentic = authentic;
+        this.apply = apply;
+        this.verifyPool = verifyPool;
+    }
+
+    public long getDuplicates() { return duplicates.sum(); }
+
+    public long getStale() { return stale.sum(); }
+
+    public long getRejected() { return rejected.sum(); }
+
+    public long getAccepted() { return accepted.sum(); }
+
+    public int getInFlight() { return ordered.size(); }
+
+    public void submit(Message msg) throws InterruptedException {
+        if (!relevant.test(msg)) {
+            stale.increment();
+            return;
+        }
+        final String key = keyOf(msg);
+        synchronized (recent) {
+            if (recent.containsKey(key)) {
+                duplicates.increment();
+                return;
+            }
+        }
+        ordered.put(new Pending(msg, key, CompletableFuture.supplyAsync(() -> authentic.test(msg), verifyPool)));
+    }
+
+    public void runHandoff() {
+        while (true) {
+            final Pending pending;
+            try {
+                pending = ordered.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.out.println(e);
+                return;
+            }
+            boolean ok;
+            try {
+                ok = pending.verdict().join();
+            } catch (CompletionException | CancellationException e) {
+                System.out.println(e);
+                ok = false;
+            }
+            if (!ok) {
+                rejected.increment();
+                continue;
+            }
+            synchronized (recent) {
+                if (recent.putIfAbsent(pending.key(), Boolean.TRUE) != null) {
+                    duplicates.increment();
+                    continue;
+                }
+            }
+            accepted.increment();
+            apply.accept(pending.msg());
+        }
+    }
+
+    private static String keyOf(Message msg) {
+        switch (msg.getType()) {
+            case PROPOSE:
+                return "P" + msg.getBlockId() + (msg.getCertificate() == null ? "" : ":" + msg.getCertificate().getView());
+            case PREPARE:
+                return "R" + msg.getSenderId() + ":" + msg.getRound() + ":" + msg.getView() + ":" + msg.getBlockId();
+            case VOTE:
+                return "V" + msg.getSenderId() + ":" + msg.getRound() + ":" + msg.getView() + ":" + msg.getBlockId();
+            case PREPARED:
+                return "Q" + msg.getRound() + ":" + msg.getView() + ":" + msg.getBlockId();
+            case COMMIT:
+                return "C" + msg.getRound() + ":" + msg.getBlockId();
+            case TX:
+                return "T" + msg.getBlockId();
+            case VIEW_CHANGE:
+                return "W" + msg.getSenderId() + ":" + msg.getRound() + ":" + msg.getView();
+            default:
+                return msg.getType() + msg.getSenderId() + msg.getRound();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Votes for one candidate block, indexed by validator ordinal. A vote claims its bit
+ * with a CAS, publishes its signature, then bumps the count; the add that moves the
+ * count to exactly the quorum is the only one that reports the quorum transition, so
+ * the commit it triggers happens once no matter how many threads tally concurrently.
+ */
+public class VoteTally {
+    private final AtomicLongArray voted;
+    private final AtomicReferenceArray<String> signatures;
+    private final AtomicInteger count = new AtomicInteger();
+    private final int quorum;
+
+    public VoteTally(int validators, int quorum) {
+        this.voted = new AtomicLongArray((validators + 63) >>> 6);
+        this.signatures = new AtomicReferenceArray<>(validators);
+        this.quorum = quorum;
+    }
+
+    /* Returns true only for the vote that completes the quorum. */
+    public boolean add(int ordinal, String signature) {
+        int word = ordinal >>> 6;
+        long bit = 1L << ordinal;
+        while (true) {
+            long current = voted.get(word);
+            if ((current & bit) != 0) return false;
+            if (voted.compareAndSet(word, current, current | bit)) break;
+        }
+        signatures.set(ordinal, signature);
+        return count.incrementAndGet() == quorum;
+    }
+
+    public boolean hasVoted(int ordinal) { return (voted.get(ordinal >>> 6) & (1L << ordinal)) != 0; }
+
+    public int count() { return count.get(); }
+
+    public boolean hasQuorum() { return count.get() >= quorum; }
+
+    public Map<String, String> signatures(List<String> validators) {
+        Map<String, String> byValidator = new LinkedHashMap<>();
+        for (int i = 0; i < signatures.length(); i++) {
+            String signature = signatures.get(i);
+            if (signature != null) byValidator.put(validators.get(i), signature);
+        }
+        return byValidator;
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+
+/*
+ * Minimal warmup/measure loop for the benchmarks in this directory. The sources live
+ * in the default package, which JMH cannot generate harness code for, so each
+ * benchmark is a plain main() built on this class.
+ *
+ * With -Dbench.results=<file> every measurement is also appended to that file as one
+ * JSON object per line (suite, name, score, error, unit, revision, timestamp);
+ * BenchCompare diffs two such files.
+ */
+public final class Bench {
+    public static volatile Object sink;
+
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 3);
+    private static final int MEASURE_ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final long ITERATION_NANOS = Long.getLong("bench.iterationMillis", 1000L) * 1_000_000L;
+    private static final String RESULTS = System.getProperty("bench.results");
+    private static final String REVISION = System.getProperty("bench.revision", "unknown");
+    private static final String SUITE = System.getProperty("sun.java.command", "unknown").split(" ")[0];
+
+    private Bench() {}
+
+    public static double measure(String name, Callable<?> op) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) iteration(op);
+        double[] nsPerOp = new double[MEASURE_ITERATIONS];
+        for (int i = 0; i < MEASURE_ITERATIONS; i++) nsPerOp[i] = iteration(op);
+
+        double mean = 0;
+        for (double v : nsPerOp) mean += v;
+        mean /= nsPerOp.length;
+        double var = 0;
+        for (double v : nsPerOp) var += (v - mean) * (v - mean);
+        double stddev = nsPerOp.length > 1 ? Math.sqrt(var / (nsPerOp.length - 1)) : 0;
+
+        System.out.printf("%-40s %14.1f ns/op  +- %8.1f  %14.1f ops/s%n", name, mean, stddev, 1e9 / mean);
+        record(name, mean, stddev, "ns/op");
+        return mean;
+    }
+
+    /* Appends one result line; units ending in "/s" are higher-is-better for BenchCompare. */
+    public static void record(String name, double score, double error, String unit) {
+        if (RESULTS == null) return;
+        String line = String.format(Locale.ROOT, "{\"suite\":\"%s\",\"name\":\"%s\",\"score\":%.3f,\"error\":%.3f,\"unit\":\"%s\",\"revision\":\"%s\",\"timestamp\":\"%s\"}%n",
+                                    escape(SUITE), escape(name), score, error, escape(unit), escape(REVISION), Instant.now());
+        try {
+            Path path = Path.of(RESULTS);
+            if (path.getParent() != null) Files.createDirectories(path.getParent());
+            Files.writeString(path, line, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+    }
+
+    private static String escape(String s) { return s.replace("\\", "\\\\").replace("\"", "\\\""); }
+
+    private static double iteration(Callable<?> op) throws Exception {
+        long ops = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            sink = op.call();
+            ops++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < ITERATION_NANOS);
+        return (double) elapsed / ops;
+    }
+}
@@ -0,0 +1,66 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Diffs two result files written with -Dbench.results. Scores are matched by suite and
+ * name; a result that got worse by more than -Dbench.threshold percent (default 10) is
+ * flagged and makes the exit status 1. Units ending in "/s" are higher-is-better,
+ * everything else lower-is-better.
+ *
+ *   BenchCompare <baseline.jsonl> <current.jsonl>
+ */
+public class BenchCompare {
+    private static final double THRESHOLD = Double.parseDouble(System.getProperty("bench.threshold", "10"));
+    private static final Pattern FIELD = Pattern.compile("\"(suite|name|unit)\":\"((?:[^\"\\\\]|\\\\.)*)\"|\"score\":([-0-9.eE]+)");
+
+    private record Result(double score, String unit) {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: BenchCompare <baseline.jsonl> <current.jsonl>");
+            System.exit(2);
+        }
+        Map<String, Result> baseline = load(Path.of(args[0]));
+        Map<String, Result> current = load(Path.of(args[1]));
+
+        int regressions = 0;
+        System.out.printf("%-70s %14s %14s %9s%n", "benchmark", "baseline", "current", "change");
+        for (Map.Entry<String, Result> entry : current.entrySet()) {
+            Result now = entry.getValue();
+            Result before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf("%-70s %14s %14.1f %9s  %s%n", entry.getKey(), "-", now.score(), "new", now.unit());
+                continue;
+            }
+            double change = 100.0 * (now.score() - before.score()) / before.score();
+            double worse = now.unit().endsWith("/s") ? -change : change;
+            boolean regressed = worse > THRESHOLD;
+            if (regressed) regressions++;
+            System.out.printf("%-70s %14.1f %14.1f %+8.1f%%  %s%s%n", entry.getKey(), before.score(), now.score(), change,
+                              now.unit(), regressed ? "  REGRESSION" : "");
+        }
+        System.out.printf("%d regression(s) beyond %.0f%%%n", regressions, THRESHOLD);
+        System.exit(regressions == 0 ? 0 : 1);
+    }
+
+    private static Map<String, Result> load(Path path) throws Exception {
+        Map<String, Result> results = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(path)) {
+            String suite = null, name = null, unit = null;
+            Double score = null;
+            Matcher m = FIELD.matcher(line);
+            while (m.find()) {
+                if (m.group(3) != null) score = Double.parseDouble(m.group(3));
+                else if (m.group(1).equals("suite")) suite = m.group(2);
+                else if (m.group(1).equals("name")) name = m.group(2);
+                else unit = m.group(2);
+            }
+            if (suite != null && name != null && score != null) results.put(suite + " / " + name, new Result(score, unit == null ? "" : unit));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,124 @@
+import java.nio.file.*;
+import java.security.PrivateKey;
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/*
+ * Block store startup, lookup, query and commit costs at several chain lengths. Blocks
+ * rotate over the three validators and carry distinct data hashes; block i has
+ * timestamp i. The last step
+ * certifies a snapshot at the tip and restarts from it; run with a small
+ * -Dstore.segmentBytes (e.g. 1048576) to see compaction shrink the replayed log.
+ */
+public class BlockStoreBenchmark {
+    static final String MODEL = "DenseNet+FedAdam";
+    private static final int COMMITS = Integer.getInteger("bench.commits", 1000);
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = args.length > 0
+            ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+            : new int[] { 10_000, 1_000_000 };
+        for (int n : sizes) run(n);
+    }
+
+    private static void run(int n) throws Exception {
+        Path dir = Files.createTempDirectory("blockstore-bench");
+        try {
+            long start = System.nanoTime();
+            generate(dir, n);
+            System.out.printf("%n%,d blocks: generated %,d bytes in %.1f s%n", n, directorySize(dir), (System.nanoTime() - start) / 1e9);
+
+            start = System.nanoTime();
+            Blockchain blockchain = new Blockchain("HospitalA", MODEL, 0, dir);
+            long startupNanos = System.nanoTime() - start;
+            System.out.printf("startup (replay + verify): %.1f ms (%,.0f blocks/s)%n",
+                              startupNanos / 1e6, n / (startupNanos / 1e9));
+
+            start = System.nanoTime();
+            blockchain = new Blockchain("HospitalA", MODEL, 0, dir);
+            System.out.printf("restart from verified checkpoint: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+
+            Random random = new Random(42);
+            String[] probes = new String[10_000];
+            for (int i = 0; i < probes.length; i++) probes[i] = blockchain.getBlock(random.nextInt(n)).getHash();
+            start = System.nanoTime();
+            for (String hash : probes) Bench.sink = blockchain.getBlock(hash);
+            System.out.printf("getBlock(hash): %.0f ns/lookup%n", (System.nanoTime() - start) / (double) probes.length);
+
+            start = System.nanoTime();
+            blockchain.query(BlockIndex.Query.all().submitter("HospitalB"), -1, 100);
+            System.out.printf("index build + first query: %.1f ms%n", (System.nanoTime() - start) / 1e6);
+            BlockIndex.Query window = BlockIndex.Query.all().submitter("HospitalB").between(n / 2, n / 2 + 3000);
+            BlockIndex.Query byData = BlockIndex.Query.all().data(blockchain.getBlock(n / 3).getDataHash());
+            BlockIndex.Query bySubmitter = BlockIndex.Query.all().submitter("HospitalC");
+            Blockchain indexed = blockchain;
+            Bench.measure("query submitter in 3000 ms window, 100/page (" + n + " blocks)", () -> indexed.query(window, -1, 100));
+            Bench.measure("query data hash (" + n + " blocks)", () -> indexed.query(byData, -1, 10));
+            Bench.measure("query submitter, last page (" + n + " blocks)", () -> indexed.query(bySubmitter, n - 1000, 100));
+
+            long[] latencies = new long[COMMITS];
+            for (int i = 0; i < COMMITS; i++) {
+                Transaction update = blockchain.newTransaction(new ChunkStore.Manifest(1, List.of(CryptoUtils.calculateHash("update" + i))));
+                Block block = blockchain.forgeBlock(List.of(update), blockchain.getLatestBlock());
+                long t = System.nanoTime();
+                blockchain.commitBlock(block);
+                latencies[i] = System.nanoTime() - t;
+            }
+            Arrays.sort(latencies);
+            System.out.printf("commit latency over %d commits: p50=%.3f ms p99=%.3f ms max=%.3f ms%n", COMMITS,
+                              latencies[COMMITS / 2] / 1e6, latencies[COMMITS * 99 / 100] / 1e6, latencies[COMMITS - 1] / 1e6);
+
+            Snapshot snapshot = blockchain.currentSnapshot();
+            blockchain.saveSnapshot(snapshot.withSignatures(Map.of("HospitalA", blockchain.signSnapshot(snapshot))));
+            blockchain.close();
+            start = System.nanoTime();
+            blockchain = new Blockchain("HospitalA", MODEL, 0, dir);
+            System.out.printf("restart from snapshot %,d: %.1f ms, %,d blocks and %,d bytes of log kept%n", snapshot.getIndex(),
+                              (System.nanoTime() - start) / 1e6, blockchain.getHeight() - blockchain.getFirstIndex(), directorySize(dir));
+            blockchain.close();
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    static void generate(Path dir, int n) {
+        PrivateKey genesisKey = CryptoUtils.loadPrivateKey("validators/Genesis/private.key");
+        String[] proposers = { "HospitalA", "HospitalB", "HospitalC" };
+        PrivateKey[] proposerKeys = new PrivateKey[proposers.length];
+        for (int p = 0; p < proposers.length; p++) proposerKeys[p] = CryptoUtils.loadPrivateKey("validators/" + proposers[p] + "/private.key");
+        Block genesis = new Block(genesisKey, MODEL);
+
+        Block[] blocks = new Block[n];
+        blocks[0] = genesis;
+        String[] hashes = new String[n];
+        hashes[0] = genesis.getHash();
+        for (int i = 1; i < n; i++) {
+            Block unsigned = new Block(i, i, CryptoUtils.calculateHash("weights" + i), genesis.getModelHash(),
+                                       proposers[i % proposers.length], hashes[i - 1], null, null);
+            hashes[i] = CryptoUtils.calculateHash(unsigned.getPayload());
+            blocks[i] = unsigned;
+        }
+        IntStream.range(1, n).parallel().forEach(i -> {
+            Block b = blocks[i];
+            blocks[i] = new Block(i, b.getTimestamp(), b.getDataHash(), b.getModelHash(), b.getBlockProposerId(),
+                                  b.getPreviousHash(), hashes[i], CryptoUtils.signData(hashes[i], proposerKeys[i % proposers.length]),
+                                  SignatureScheme.of(proposerKeys[i % proposers.length]), List.of());
+        });
+
+        try (BlockStore store = new BlockStore(dir)) {
+            store.recover(_ -> true);
+            for (int i = 0; i < n; i += 1000) {
+                store.append(Arrays.asList(blocks).subList(i, Math.min(n, i + 1000)));
+            }
+        }
+    }
+
+    private static long directorySize(Path dir) throws Exception {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToLong(p -> p.toFile().length()).sum();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/*
+ * Runs a whole cluster in this JVM over a LoopbackNetwork and drives it with a scripted
+ * transaction load. With no arguments the cluster is the one in nodes.csv; otherwise
+ * each argument is a cluster size (f = (n-1)/3) and the runs are reported side by side.
+ * Submissions go round-robin to the live nodes; a transaction's commit latency is the
+ * time from submission until its submitter commits the block holding it.
+ *
+ *   -Dbench.txs=<n>             transactions per run (default 200)
+ *   -Dbench.rate=<tx/s>         offered load, 0 = as fast as possible (default 100)
+ *   -Dbench.payloadBytes=<n>    size of each submitted file (default 1024)
+ *   -Dbench.latencyMillis=<ms>  one-way delivery latency (default 1)
+ *   -Dbench.jitterMillis=<ms>   extra uniform random latency (default 0)
+ *   -Dbench.loss=<p>            drop probability per message (default 0)
+ *   -Dbench.crash=<k>           nodes crashed before the load starts (default 0)
+ *   -Dbench.recoverAfter=<n>    bring the crashed nodes back after n submissions and
+ *                               report how long state sync takes to catch them up
+ *   -Dbench.queue=true          submit through each node's SubmissionQueue, retrying
+ *                               when it refuses, instead of chunking on this thread
+ *   -Dbench.codec=true          round-trip every message through MessageCodec
+ *   -Dbench.timeoutSeconds=<s>  round timeout (default 3)
+ *   -Dbench.drainSeconds=<s>    how long to wait for outstanding commits (default 60)
+ *   -Dbench.verbose=true        keep the nodes' console output
+ *
+ * Node flags (batch.*, consensus.voteMode, exec.*) apply to every node. Keys, chains
+ * and payloads go under data/sim and are recreated on every run.
+ */
+public class ClusterBenchmark {
+    private static final Path ROOT = Path.of("data", "sim");
+    private static final String MODEL = "sim-model";
+
+    private static final int TXS = Integer.getInteger("bench.txs", 200);
+    private static final double RATE = Double.parseDouble(System.getProperty("bench.rate", "100"));
+    private static final int PAYLOAD_BYTES = Integer.getInteger("bench.payloadBytes", 1024);
+    private static final double LATENCY_MILLIS = Double.parseDouble(System.getProperty("bench.latencyMillis", "1"));
+    private static final double JITTER_MILLIS = Double.parseDouble(System.getProperty("bench.jitterMillis", "0"));
+    private static final double LOSS = Double.parseDouble(System.getProperty("bench.loss", "0"));
+    private static final int CRASH = Integer.getInteger("bench.crash", 0);
+    private static final int RECOVER_AFTER = Integer.getInteger("bench.recoverAfter", -1);
+    private static final boolean QUEUE = Boolean.getBoolean("bench.queue");
+    private static final boolean CODEC = Boolean.getBoolean("bench.codec");
+    private static final int TIMEOUT_SECONDS = Integer.getInteger("bench.timeoutSeconds", 3);
+    private static final int DRAIN_SECONDS = Integer.getInteger("bench.drainSeconds", 60);
+    private static final boolean VERBOSE = Boolean.getBoolean("bench.verbose");
+
+    private static final PrintStream out = System.out;
+
+    public static void main(String[] args) throws Exception {
+        List<Cluster> clusters = new ArrayList<>();
+        if (args.length == 0) {
+            List<NodeConfigLoader.NodeConfig> configs = NodeConfigLoader.loadConfigs("nodes.csv");
+            List<String> ids = new ArrayList<>();
+            int faulty = 0;
+            for (NodeConfigLoader.NodeConfig config : configs) {
+                ids.add(config.id);
+                faulty = Math.max(faulty, config.faultyCount);
+            }
+            clusters.add(new Cluster("csv", ids, faulty));
+        } else {
+            for (String arg : args) {
+                int n = Integer.parseInt(arg);
+                List<String> ids = new ArrayList<>();
+                for (int i = 0; i < n; i++) ids.add(String.format("Sim%03d", i));
+                clusters.add(new Cluster("n" + n, ids, (n - 1) / 3));
+            }
+        }
+
+        List<Path> payloads = writePayloads();
+        out.printf("%d cores, %d txs of %d bytes at %s tx/s, latency %.1f+%.1f ms, loss %.3f, %d crashed, codec %s, voteMode %s%n",
+                   Runtime.getRuntime().availableProcessors(), TXS, PAYLOAD_BYTES, RATE > 0 ? String.valueOf(RATE) : "max",
+                   LATENCY_MILLIS, JITTER_MILLIS, LOSS, CRASH, CODEC, System.getProperty("consensus.voteMode", "ALL_TO_ALL"));
+        out.printf("%-6s %3s %7s %7s %8s %9s %8s %9s %9s %9s %9s%n",
+                   "nodes", "f", "crashed", "commits", "blocks", "tx/s", "blocks/s", "p50 ms", "p99 ms", "msgs", "dropped");
+        for (Cluster cluster : clusters) run(cluster, payloads);
+        System.exit(0);
+    }
+
+    private record Cluster(String name, List<String> ids, int faulty) {}
+
+    private static void run(Cluster cluster, List<Path> payloads) throws Exception {
+        Path dir = ROOT.resolve(cluster.name());
+        deleteRecursively(dir);
+        Path validators = dir.resolve("validators");
+        KeyPairGeneratorTool.generateAndStoreKeys("Genesis", validators.toFile());
+        for (String id : cluster.ids()) KeyPairGeneratorTool.generateAndStoreKeys(id, validators.toFile());
+
+        int n = cluster.ids().size();
+        LoopbackNetwork network = new LoopbackNetwork(n, (long) (LATENCY_MILLIS * 1000), (long) (JITTER_MILLIS * 1000), LOSS, CODEC);
+        Map<String, Long> submittedAt = new ConcurrentHashMap<>();
+        Map<String, Long> committedAt = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(TXS);
+
+        if (!VERBOSE) System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        List<Node> nodes = new ArrayList<>();
+        try {
+            for (String id : cluster.ids()) {
+                LinkedBlockingQueue<Message> inbound = new LinkedBlockingQueue<>();
+                Node node = new Node(id, MODEL, cluster.faulty(), TIMEOUT_SECONDS, dir.resolve(id), validators,
+                                     inbound, network.join(id, inbound), NodeExecutors.fromSystemProperties(), new Metrics(id));
+                node.getBlockchain().onCommit(block -> {
+                    long now = System.nanoTime();
+                    for (Transaction tx : block.getTransactions()) {
+                        if (tx.getSubmitterId().equals(id) && committedAt.putIfAbsent(tx.getHash(), now) == null) done.countDown();
+                    }
+                });
+                nodes.add(node);
+            }
+            List<Node> live = new ArrayList<>(nodes);
+            List<Node> crashed = new ArrayList<>();
+            for (int i = 0; i < Math.min(CRASH, n - 1); i++) {
+                Node victim = live.remove(live.size() - 1);
+                network.crash(victim.getBlockchain().getId());
+                crashed.add(victim);
+            }
+
+            long start = System.nanoTime();
+            Thread catchUp = null;
+            Map<SubmissionQueue.Ticket, Long> tickets = new HashMap<>();
+            int refused = 0;
+            for (int i = 0; i < TXS; i++) {
+                if (i == RECOVER_AFTER && !crashed.isEmpty()) catchUp = recover(network, crashed, live.get(0));
+                if (RATE > 0) {
+                    long due = start + (long) (i * 1e9 / RATE);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                Node node = live.get(i % live.size());
+                if (QUEUE) {
+                    while (true) {
+                        try {
+                            long now = System.nanoTime();
+                            tickets.put(node.submit(payloads.get(i)), now);
+                            break;
+                        } catch (RejectedExecutionException e) {
+                            refused++;
+                            Thread.sleep(1);
+                        }
+                    }
+                } else {
+                    long now = System.nanoTime();
+                    Transaction tx = node.submitUpdate(payloads.get(i));
+                    submittedAt.put(tx.getHash(), now);
+                }
+            }
+            done.await(DRAIN_SECONDS, TimeUnit.SECONDS);
+            tickets.forEach((ticket, at) -> {
+                if (ticket.getTransaction() != null) submittedAt.put(ticket.getTransaction().getHash(), at);
+            });
+            if (catchUp != null) catchUp.join(TimeUnit.SECONDS.toMillis(DRAIN_SECONDS));
+            long end = committedAt.values().stream().mapToLong(Long::longValue).max().orElse(System.nanoTime());
+
+            long[] latencies = submittedAt.entrySet().stream()
+                .filter(e -> committedAt.containsKey(e.getKey()))
+                .mapToLong(e -> committedAt.get(e.getKey()) - e.getValue())
+                .sorted().toArray();
+            int blocks = live.get(0).getBlockchain().getHeight() - 1;
+            double seconds = (end - start) / 1e9;
+            out.printf("%-6d %3d %7d %7d %8d %9.1f %8.1f %9.1f %9.1f %9d %9d%n",
+                       n, cluster.faulty(), n - live.size(), latencies.length, blocks,
+                       latencies.length / seconds, blocks / seconds,
+                       percentile(latencies, 0.50) / 1e6, percentile(latencies, 0.99) / 1e6,
+                       network.getSent(), network.getDropped());
+            if (refused > 0) out.printf("       %d submissions refused by admission control and retried%n", refused);
+            int fork = firstFork(live);
+            if (fork >= 0) out.printf("       FORK: live nodes committed different blocks at height %d%n", fork);
+        } finally {
+            for (Node node : nodes) network.crash(node.getBlockchain().getId());
+            for (Node node : nodes) node.close();
+            network.shutdown();
+            System.setOut(out);
+        }
+    }
+
+    /* Brings the crashed nodes back and reports, once they reach the height they rejoined at, how long that took. */
+    private static Thread recover(LoopbackNetwork network, List<Node> crashed, Node reference) {
+        final int target = reference.getBlockchain().getHeight();
+        final int behind = target - crashed.get(0).getBlockchain().getHeight();
+        final long start = System.nanoTime();
+        for (Node node : crashed) network.recover(node.getBlockchain().getId());
+        Thread thread = new Thread(() -> {
+            long deadline = start + TimeUnit.SECONDS.toNanos(DRAIN_SECONDS);
+            try {
+                while (System.nanoTime() < deadline && crashed.stream().anyMatch(node -> node.getBlockchain().getHeight() < target)) {
+                    Thread.sleep(1);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            double millis = (System.nanoTime() - start) / 1e6;
+            boolean synced = crashed.stream().allMatch(node -> node.getBlockchain().getHeight() >= target);
+            out.printf("  %d node(s) %s %d blocks in %.1f ms (%.0f blocks/s)%n",
+                       crashed.size(), synced ? "caught up on" : "failed to catch up on", behind, millis, behind / (millis / 1e3));
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /* The lowest height at which two live nodes hold different blocks, or -1 when their chains agree. */
+    private static int firstFork(List<Node> live) {
+        Blockchain reference = live.get(0).getBlockchain();
+        for (Node node : live.subList(1, live.size())) {
+            Blockchain chain = node.getBlockchain();
+            int from = Math.max(reference.getFirstIndex(), chain.getFirstIndex());
+            int to = Math.min(reference.getHeight(), chain.getHeight());
+            for (int i = from; i < to; i++) {
+                Block a = reference.getBlock(i);
+                Block b = chain.getBlock(i);
+                if (a != null && b != null && !a.getHash().equals(b.getHash())) return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) return 0;
+        return sorted[Math.max(0, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static List<Path> writePayloads() throws IOException {
+        Path dir = ROOT.resolve("payloads");
+        deleteRecursively(dir);
+        Files.createDirectories(dir);
+        List<Path> payloads = new ArrayList<>(TXS);
+        byte[] data = new byte[PAYLOAD_BYTES];
+        for (int i = 0; i < TXS; i++) {
+            ThreadLocalRandom.current().nextBytes(data);
+            Path path = dir.resolve("tx-" + i + ".bin");
+            Files.write(path, data);
+            payloads.add(path);
+        }
+        return payloads;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (!Files.exists(dir)) return;
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) Files.delete(path);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+import java.security.*;
+import java.util.Base64;
+
+public class CryptoBenchmark {
+    private static final int DISTINCT_MESSAGES = 8192;
+
+    public static void main(String[] args) throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        KeyPair pair = keyGen.generateKeyPair();
+
+        String hash = CryptoUtils.calculateHash("payload");
+        String signature = CryptoUtils.signData(hash, pair.getPrivate());
+
+        String[] hashes = new String[DISTINCT_MESSAGES];
+        String[] signatures = new String[DISTINCT_MESSAGES];
+        for (int i = 0; i < DISTINCT_MESSAGES; i++) {
+            hashes[i] = CryptoUtils.calculateHash("payload" + i);
+            signatures[i] = CryptoUtils.signData(hashes[i], pair.getPrivate());
+        }
+        int[] next = new int[1];
+
+        Bench.measure("hash (getInstance per call)", () -> legacyHash(hash));
+        Bench.measure("hash (thread-local digest)", () -> CryptoUtils.calculateHash(hash));
+        Bench.measure("sign (getInstance per call)", () -> legacySign(hash, pair.getPrivate()));
+        Bench.measure("sign (thread-local signature)", () -> CryptoUtils.signData(hash, pair.getPrivate()));
+        Bench.measure("verify (getInstance per call)", () -> legacyVerify(hash, signature, pair.getPublic()));
+        Bench.measure("verify (cache miss)", () -> {
+            int i = next[0]++ % DISTINCT_MESSAGES;
+            return CryptoUtils.verifySignature(hashes[i], signatures[i], pair.getPublic());
+        });
+        Bench.measure("verify (cache hit)", () -> CryptoUtils.verifySignature(hash, signature, pair.getPublic()));
+        System.out.printf("verify cache: %d hits, %d misses%n", CryptoUtils.getVerifyCacheHits(), CryptoUtils.getVerifyCacheMisses());
+    }
+
+    private static String legacyHash(String input) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        byte[] hashBytes = digest.digest(input.getBytes("UTF-8"));
+        StringBuilder hexString = new StringBuilder();
+        for (byte b : hashBytes) hexString.append(String.format("%02x", b));
+        return hexString.toString();
+    }
+
+    private static String legacySign(String data, PrivateKey privateKey) throws Exception {
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(privateKey);
+        signer.update(data.getBytes());
+        return Base64.getEncoder().encodeToString(signer.sign());
+    }
+
+    private static boolean legacyVerify(String data, String signature, PublicKey publicKey) throws Exception {
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(publicKey);
+        verifier.update(data.getBytes());
+        return verifier.verify(Base64.getDecoder().decode(signature));
+    }
+}
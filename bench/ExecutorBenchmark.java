@@ -0,0 +1,62 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * How many concurrently blocked peers one JVM can carry. Each simulated peer owns a
+ * serial sender (as in PortLink) and pushes -Dbench.frames frames, each of which
+ * blocks for -Dbench.blockMillis as if waiting on a full socket buffer.
+ */
+public class ExecutorBenchmark {
+    private static final int FRAMES = Integer.getInteger("bench.frames", 4);
+    private static final long BLOCK_MILLIS = Long.getLong("bench.blockMillis", 20);
+    private static final int PLATFORM_LIMIT = Integer.getInteger("bench.platformLimit", 5000);
+
+    public static void main(String[] args) throws Exception {
+        int[] peerCounts = args.length > 0
+            ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+            : new int[] { 100, 1000, 10_000, 100_000 };
+        System.out.printf("%d cores, %d frames/peer, %d ms blocked per frame%n",
+                          Runtime.getRuntime().availableProcessors(), FRAMES, BLOCK_MILLIS);
+        for (int peers : peerCounts) {
+            for (NodeExecutors.IoMode mode : NodeExecutors.IoMode.values()) {
+                if (mode == NodeExecutors.IoMode.PLATFORM && peers > PLATFORM_LIMIT) {
+                    System.out.printf("  %-8s %,9d peers  skipped (over bench.platformLimit)%n", mode, peers);
+                    continue;
+                }
+                run(mode, peers);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static void run(NodeExecutors.IoMode mode, int peers) throws InterruptedException {
+        NodeExecutors executors = new NodeExecutors(mode, 1, 16);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        CountDownLatch done = new CountDownLatch(peers * FRAMES);
+
+        long start = System.nanoTime();
+        for (int p = 0; p < peers; p++) {
+            Executor sender = executors.serial();
+            for (int f = 0; f < FRAMES; f++) {
+                sender.execute(() -> {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(BLOCK_MILLIS));
+                    done.countDown();
+                });
+            }
+        }
+        done.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long ideal = FRAMES * BLOCK_MILLIS;
+        System.out.printf("  %-8s %,9d peers  %8.3f s (ideal %.3f s)  %,12.0f frames/s  peak threads %,d%n",
+                          mode, peers, seconds, ideal / 1e3, peers * FRAMES / seconds, threads.getPeakThreadCount());
+        executors.io().shutdown();
+        executors.io().awaitTermination(1, TimeUnit.MINUTES);
+        executors.verify().shutdown();
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+
+public class FileHashBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        long[] sizesMb = args.length > 0
+            ? Arrays.stream(args).mapToLong(Long::parseLong).toArray()
+            : new long[] { 10, 100, 1024, 2048 };
+        System.out.printf("%d cores%n", Runtime.getRuntime().availableProcessors());
+        for (long mb : sizesMb) run(mb);
+    }
+
+    private static void run(long mb) throws Exception {
+        Path file = Files.createTempFile("weights", ".bin");
+        try {
+            write(file, mb * 1024 * 1024);
+            System.out.printf("%n%,d MB%n", mb);
+            time("InputStream 8 KB (legacy)", mb, () -> streamHash(file));
+            time("FileChannel mapped (FLAT)", mb, () -> FileHasher.hash(file, FileHasher.Mode.FLAT));
+            time("chunked Merkle (TREE)", mb, () -> FileHasher.hash(file, FileHasher.Mode.TREE));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private interface HashOp { String run() throws Exception; }
+
+    private static void time(String name, long mb, HashOp op) throws Exception {
+        op.run();
+        long start = System.nanoTime();
+        String hash = op.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("  %-28s %8.3f s %10.1f MB/s  %s%n", name, seconds, mb / seconds, hash);
+    }
+
+    private static void write(Path file, long bytes) throws Exception {
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(7);
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (long written = 0; written < bytes; written += block.length) {
+                random.nextBytes(block);
+                out.write(block, 0, (int) Math.min(block.length, bytes - written));
+            }
+        }
+    }
+
+    private static String streamHash(Path file) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (InputStream is = Files.newInputStream(file)) {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = is.read(buffer)) != -1) digest.update(buffer, 0, bytesRead);
+        }
+        return CryptoUtils.toHex(digest.digest());
+    }
+}
@@ -0,0 +1,139 @@
+import java.nio.file.*;
+import java.security.PrivateKey;
+import java.util.*;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/*
+ * Node hot paths not covered by CryptoBenchmark and MessageCodecBenchmark: file hashing,
+ * block construction, a full Blockchain.isValid pass at several chain lengths, and vote
+ * ingestion through MessageHandler's verify pipeline. Run from the repo root; it signs
+ * with the keys in validators/.
+ *
+ *   HotPathBenchmark [chainLengths...]   (default 100 1000 10000)
+ *   -Dbench.fileBytes=<n>               file size for hashFile (default 1 MB)
+ *   -Dbench.votes=<n>                   signed votes fed to MessageHandler (default 3000)
+ */
+public class HotPathBenchmark {
+    private static final int FILE_BYTES = Integer.getInteger("bench.fileBytes", 1024 * 1024);
+    private static final int VOTES = Integer.getInteger("bench.votes", 3000);
+
+    public static void main(String[] args) throws Exception {
+        int[] lengths = args.length > 0
+            ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+            : new int[] { 100, 1000, 10_000 };
+        PrivateKey key = CryptoUtils.loadPrivateKey("validators/HospitalA/private.key");
+
+        Path file = Files.createTempFile("hotpath", ".bin");
+        try {
+            byte[] data = new byte[FILE_BYTES];
+            ThreadLocalRandom.current().nextBytes(data);
+            Files.write(file, data);
+            Bench.measure("hashFile (" + FILE_BYTES / 1024 + " KB)", () -> CryptoUtils.hashFile(file.toString()));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        Block genesis = new Block(CryptoUtils.loadPrivateKey("validators/Genesis/private.key"), BlockStoreBenchmark.MODEL);
+        List<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            ChunkStore.Manifest manifest = new ChunkStore.Manifest(1024, List.of(CryptoUtils.calculateHash("chunk" + i)));
+            transactions.add(Transaction.sign("HospitalA", manifest, key));
+        }
+        Bench.measure("Block hash (unsigned)", () -> {
+            Block block = new Block(1, System.currentTimeMillis(), "", genesis.getModelHash(), "HospitalA", genesis.getHash(), null, null);
+            return CryptoUtils.calculateHash(block.getPayload());
+        });
+        Bench.measure("Block.forge (signed, 1 tx)", () -> Block.forge(1, transactions.subList(0, 1), BlockStoreBenchmark.MODEL, genesis.getHash(), "HospitalA", key));
+        Bench.measure("Block.forge (signed, 16 txs)", () -> Block.forge(1, transactions, BlockStoreBenchmark.MODEL, genesis.getHash(), "HospitalA", key));
+
+        for (int length : lengths) isValid(length);
+        voteIngestion();
+    }
+
+    /* What Blockchain.isValid runs, with the verified-up-to checkpoint removed before each pass. */
+    private static void isValid(int length) throws Exception {
+        Path dir = Files.createTempDirectory("hotpath-chain");
+        try {
+            BlockStoreBenchmark.generate(dir, length);
+            Blockchain blockchain = new Blockchain("HospitalA", BlockStoreBenchmark.MODEL, 0, dir);
+            Path checkpoint = dir.resolve("bench.checkpoint");
+            long misses = CryptoUtils.getVerifyCacheMisses();
+            double nanos = Bench.measure("Blockchain.isValid (" + length + " blocks)", () -> {
+                Files.deleteIfExists(checkpoint);
+                ChainVerifier verifier = new ChainVerifier(blockchain::getBlock, blockchain::isSigned, blockchain::isLinked, checkpoint);
+                return verifier.verify(blockchain.getHeight());
+            });
+            Bench.record("Blockchain.isValid (" + length + " blocks) throughput", length / (nanos / 1e9), 0, "blocks/s");
+            System.out.printf("  %,.0f blocks/s, %d signature cache misses%n", length / (nanos / 1e9), CryptoUtils.getVerifyCacheMisses() - misses);
+            blockchain.close();
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    /*
+     * Signed votes from every validator for distinct candidate blocks of round 1, pushed
+     * through the router queue once (each vote verified and tallied) and then again
+     * (each dropped as a duplicate before any crypto).
+     */
+    private static void voteIngestion() throws Exception {
+        Path dir = Files.createTempDirectory("hotpath-votes");
+        NodeExecutors executors = NodeExecutors.fromSystemProperties();
+        try {
+            Transport silent = new Transport() {
+                @Override
+                public void broadcastMessage(Message message) {}
+
+                @Override
+                public boolean sendMessage(String peerId, Message message) { return true; }
+
+                @Override
+                public int getPortCount() { return 3; }
+            };
+            Blockchain blockchain = new Blockchain("HospitalA", BlockStoreBenchmark.MODEL, 0, dir);
+            LinkedBlockingQueue<Message> inbound = new LinkedBlockingQueue<>();
+            MessageHandler handler = new MessageHandler(silent, blockchain, inbound, 60,
+                                                        new ChunkSync("HospitalA", blockchain, new ChunkStore(dir.resolve("chunks")), silent, executors.io()),
+                                                        new Mempool(256, 1024 * 1024, 200), MessageHandler.VoteMode.ALL_TO_ALL, executors);
+            handler.startRouter();
+
+            List<String> validators = blockchain.getValidators();
+            Map<String, PrivateKey> keys = new HashMap<>();
+            for (String id : validators) keys.put(id, CryptoUtils.loadPrivateKey("validators/" + id + "/private.key"));
+            List<Message> votes = new ArrayList<>(VOTES);
+            for (int i = 0; votes.size() < VOTES; i++) {
+                String blockHash = CryptoUtils.calculateHash("candidate" + i);
+                for (String id : validators) {
+                    if (votes.size() < VOTES) votes.add(Message.vote(id, 1, 0, blockHash, CryptoUtils.signData("VOTE1:0:" + blockHash, keys.get(id))));
+                }
+            }
+
+            VerifyPipeline pipeline = handler.getPipeline();
+            for (String pass : new String[] { "verified", "duplicate" }) {
+                long target = processed(pipeline) + votes.size();
+                long start = System.nanoTime();
+                inbound.addAll(votes);
+                while (processed(pipeline) < target) Thread.onSpinWait();
+                double nsPerVote = (System.nanoTime() - start) / (double) votes.size();
+                System.out.printf("%-40s %14.1f ns/op  (%d votes, %d accepted, %d duplicates)%n",
+                                  "MessageHandler vote ingestion (" + pass + ")", nsPerVote, votes.size(),
+                                  pipeline.getAccepted(), pipeline.getDuplicates());
+                Bench.record("MessageHandler vote ingestion (" + pass + ")", nsPerVote, 0, "ns/op");
+            }
+            blockchain.close();
+        } finally {
+            executors.shutdown();
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+            }
+        }
+    }
+
+    private static long processed(VerifyPipeline pipeline) {
+        return pipeline.getAccepted() + pipeline.getRejected() + pipeline.getDuplicates() + pipeline.getStale();
+    }
+}
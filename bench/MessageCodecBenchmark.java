@@ -0,0 +1,85 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+
+/*
+ * MessageCodec against the Java serialization it replaced. Message and Block now
+ * serialize through the codec themselves (writeReplace), so the baseline is a standalone
+ * copy of their original Serializable field layout, in which a VOTE carried its whole block.
+ */
+public class MessageCodecBenchmark {
+    private static final ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+    private record LegacyBlock(int index, long timestamp, String dataHash, String modelHash, String blockProposerId,
+                               String previousHash, String hash, String signature) implements Serializable {
+        LegacyBlock(Block block) {
+            this(block.getIndex(), block.getTimestamp(), block.getDataHash(), block.getModelHash(), block.getBlockProposerId(),
+                 block.getPreviousHash(), block.getHash(), block.getSignature());
+        }
+    }
+
+    private record LegacyMessage(String blockId, Message.Type type, LegacyBlock block, String senderId) implements Serializable {}
+
+    public static void main(String[] args) throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA");
+        keyGen.initialize(2048);
+        KeyPair pair = keyGen.generateKeyPair();
+
+        Block genesis = new Block(pair.getPrivate(), "DenseNet+FedAdam");
+        Block unsigned = new Block(1, System.currentTimeMillis(), CryptoUtils.calculateHash("weights"),
+                                   genesis.getModelHash(), "HospitalA", genesis.getHash(), null, null);
+        String hash = CryptoUtils.calculateHash(unsigned.getPayload());
+        Block block = new Block(unsigned.getIndex(), unsigned.getTimestamp(), unsigned.getDataHash(), unsigned.getModelHash(),
+                                unsigned.getBlockProposerId(), unsigned.getPreviousHash(), hash,
+                                CryptoUtils.signData(hash, pair.getPrivate()));
+
+        Message propose = new Message(Message.Type.PROPOSE, "HospitalA", block);
+        Message vote = Message.vote("HospitalB", 1, 0, hash, CryptoUtils.signData("VOTE1:0:" + hash, pair.getPrivate()));
+        LegacyMessage legacyPropose = new LegacyMessage(hash, Message.Type.PROPOSE, new LegacyBlock(block), "HospitalA");
+        LegacyMessage legacyVote = new LegacyMessage(hash, Message.Type.VOTE, new LegacyBlock(block), "HospitalB");
+
+        size("PROPOSE", legacyPropose, propose);
+        size("VOTE", legacyVote, vote);
+
+        Bench.measure("legacy java PROPOSE round trip", () -> javaDeserialize(javaSerialize(legacyPropose)));
+        Bench.measure("codec PROPOSE round trip", () -> codecRoundTrip(propose));
+        Bench.measure("legacy java VOTE (full block) round trip", () -> javaDeserialize(javaSerialize(legacyVote)));
+        Bench.measure("codec VOTE round trip", () -> codecRoundTrip(vote));
+    }
+
+    private static void size(String type, LegacyMessage legacy, Message message) throws IOException {
+        int legacyBytes = javaSerialize(legacy).length;
+        int codecBytes = codecSize(message);
+        System.out.printf("%-8s size: legacy java=%d B, codec=%d B%n", type, legacyBytes, codecBytes);
+        Bench.record("legacy java " + type + " size", legacyBytes, 0, "B");
+        Bench.record("codec " + type + " size", codecBytes, 0, "B");
+    }
+
+    private static int codecSize(Message message) {
+        buffer.clear();
+        MessageCodec.encode(message, buffer);
+        return buffer.position();
+    }
+
+    private static Message codecRoundTrip(Message message) {
+        buffer.clear();
+        MessageCodec.encode(message, buffer);
+        buffer.flip();
+        return MessageCodec.decode(buffer);
+    }
+
+    private static byte[] javaSerialize(LegacyMessage message) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bos)) {
+            oos.writeObject(message);
+        }
+        return bos.toByteArray();
+    }
+
+    private static Object javaDeserialize(byte[] bytes) throws Exception {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return ois.readObject();
+        }
+    }
+}
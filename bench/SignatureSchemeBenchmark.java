@@ -0,0 +1,92 @@
+import java.security.KeyPair;
+import java.util.*;
+
+/*
+ * RSA against Ed25519 on the paths a validator signs and verifies on: one signature,
+ * one verification (always a cache miss), and a quorum certificate of 2f+1 votes
+ * checked one at a time or through CryptoUtils.verifyAll. Also reports key, signature
+ * and encoded VOTE, COMMIT and PROPOSE sizes.
+ *
+ *   -Dbench.validators=<n>   validators behind the certificate (default 100)
+ *   -Dbench.blockTxs=<n>     transactions in the PROPOSE block (default 64)
+ */
+public class SignatureSchemeBenchmark {
+    private static final int VALIDATORS = Integer.getInteger("bench.validators", 100);
+    private static final int BLOCK_TXS = Integer.getInteger("bench.blockTxs", 64);
+    private static final int DISTINCT_MESSAGES = 8192;
+
+    public static void main(String[] args) throws Exception {
+        int quorum = 2 * ((VALIDATORS - 1) / 3) + 1;
+        System.out.printf("%d validators, certificates of %d votes, %d cores%n",
+                          VALIDATORS, quorum, Runtime.getRuntime().availableProcessors());
+        for (SignatureScheme scheme : SignatureScheme.values()) run(scheme, quorum);
+    }
+
+    private static void run(SignatureScheme scheme, int quorum) throws Exception {
+        System.out.println("== " + scheme);
+        KeyPair[] pairs = new KeyPair[quorum];
+        for (int i = 0; i < quorum; i++) pairs[i] = scheme.generateKeyPair();
+        KeyPair pair = pairs[0];
+
+        String hash = CryptoUtils.calculateHash("payload");
+        String[] hashes = new String[DISTINCT_MESSAGES];
+        String[] signatures = new String[DISTINCT_MESSAGES];
+        for (int i = 0; i < DISTINCT_MESSAGES; i++) {
+            hashes[i] = CryptoUtils.calculateHash("payload" + i);
+            signatures[i] = CryptoUtils.signData(hashes[i], pair.getPrivate());
+        }
+
+        /* Enough distinct certificates that every verification misses the cache. */
+        int certificates = Math.max(2, 2 * DISTINCT_MESSAGES / quorum);
+        List<List<CryptoUtils.Signed>> votes = new ArrayList<>(certificates);
+        for (int c = 0; c < certificates; c++) {
+            String payload = "VOTE" + c + ":0:" + CryptoUtils.calculateHash("block" + c);
+            List<CryptoUtils.Signed> certificate = new ArrayList<>(quorum);
+            for (KeyPair voter : pairs) {
+                certificate.add(new CryptoUtils.Signed(voter.getPublic(), payload, CryptoUtils.signData(payload, voter.getPrivate())));
+            }
+            votes.add(certificate);
+        }
+        int[] next = new int[2];
+
+        Bench.measure(scheme + " sign", () -> CryptoUtils.signData(hash, pair.getPrivate()));
+        Bench.measure(scheme + " verify (cache miss)", () -> {
+            int i = next[0]++ % DISTINCT_MESSAGES;
+            return CryptoUtils.verifySignature(hashes[i], signatures[i], pair.getPublic());
+        });
+        Bench.measure(scheme + " certificate, one by one", () -> {
+            int valid = 0;
+            for (CryptoUtils.Signed vote : votes.get(next[1]++ % certificates)) {
+                if (CryptoUtils.verifySignature(vote.data(), vote.signature(), vote.publicKey())) valid++;
+            }
+            return valid;
+        });
+        Bench.measure(scheme + " certificate, verifyAll", () -> CryptoUtils.verifyAll(votes.get(next[1]++ % certificates)));
+
+        int signatureBytes = Base64.getDecoder().decode(signatures[0]).length;
+        int keyBytes = pair.getPublic().getEncoded().length;
+        Map<String, String> qc = new LinkedHashMap<>();
+        for (int i = 0; i < quorum; i++) qc.put(String.format("Hospital%03d", i), votes.get(0).get(i).signature());
+        Message vote = Message.vote("Hospital001", 1, 0, hash, signatures[0]);
+        Message commit = Message.commit("Hospital000", new QuorumCertificate(1, 0, hash, qc));
+        Message propose = new Message(Message.Type.PROPOSE, "Hospital000", block(pair));
+
+        System.out.printf("%s sizes: public key %d B, signature %d B, VOTE %d B, COMMIT %d B, PROPOSE (%d txs) %d B%n",
+                          scheme, keyBytes, signatureBytes, size(vote), size(commit), BLOCK_TXS, size(propose));
+        Bench.record(scheme + " signature size", signatureBytes, 0, "B");
+        Bench.record(scheme + " VOTE size", size(vote), 0, "B");
+        Bench.record(scheme + " COMMIT size", size(commit), 0, "B");
+        Bench.record(scheme + " PROPOSE size", size(propose), 0, "B");
+    }
+
+    private static Block block(KeyPair pair) {
+        List<Transaction> transactions = new ArrayList<>(BLOCK_TXS);
+        for (int i = 0; i < BLOCK_TXS; i++) {
+            ChunkStore.Manifest manifest = new ChunkStore.Manifest(1024, List.of(CryptoUtils.calculateHash("chunk" + i)));
+            transactions.add(Transaction.sign("Hospital000", manifest, pair.getPrivate()));
+        }
+        return Block.forge(1, transactions, "DenseNet+FedAdam", CryptoUtils.calculateHash("genesis"), "Hospital000", pair.getPrivate());
+    }
+
+    private static int size(Message message) { return MessageCodec.encode(message).remaining(); }
+}
@@ -0,0 +1,82 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Contended vote ingestion: every thread delivers every validator's vote (so each vote
+ * arrives once per thread, as with duplicate deliveries) into the same candidate
+ * tallies. Compares VoteTally against the earlier ConcurrentHashMap<String, Set<String>>
+ * tally and counts how often each one reports "quorum reached" per block.
+ */
+public class VoteTallyBenchmark {
+    private static final int VALIDATORS = Integer.getInteger("bench.validators", 64);
+    private static final int BLOCKS = Integer.getInteger("bench.blocks", 20_000);
+
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = args.length > 0
+            ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray()
+            : new int[] { 1, 2, 4, 8, 16 };
+        int quorum = 2 * ((VALIDATORS - 1) / 3) + 1;
+        String[] voters = new String[VALIDATORS];
+        String[] signatures = new String[VALIDATORS];
+        for (int i = 0; i < VALIDATORS; i++) {
+            voters[i] = "Hospital" + i;
+            signatures[i] = "sig" + i;
+        }
+        String[] blockHashes = new String[BLOCKS];
+        for (int b = 0; b < BLOCKS; b++) blockHashes[b] = CryptoUtils.calculateHash("block" + b);
+
+        System.out.printf("%d cores, %d validators, quorum %d, %d blocks%n",
+                          Runtime.getRuntime().availableProcessors(), VALIDATORS, quorum, BLOCKS);
+        for (int threads : threadCounts) {
+            for (int warm = 0; warm < 2; warm++) {
+                boolean report = warm == 1;
+                run("VoteTally", threads, report, () -> {
+                    VoteTally[] tallies = new VoteTally[BLOCKS];
+                    for (int b = 0; b < BLOCKS; b++) tallies[b] = new VoteTally(VALIDATORS, quorum);
+                    return (b, v) -> tallies[b].add(v, signatures[v]);
+                });
+                run("ConcurrentHashMap<String,Set>", threads, report, () -> {
+                    ConcurrentHashMap<String, Set<String>> votes = new ConcurrentHashMap<>();
+                    return (b, v) -> {
+                        votes.computeIfAbsent(blockHashes[b], _ -> ConcurrentHashMap.newKeySet()).add(voters[v]);
+                        return votes.get(blockHashes[b]).size() >= quorum;
+                    };
+                });
+            }
+        }
+    }
+
+    private interface Tally { boolean add(int block, int validator); }
+
+    private interface TallyFactory { Tally create(); }
+
+    private static void run(String name, int threads, boolean report, TallyFactory factory) throws InterruptedException {
+        Tally tally = factory.create();
+        AtomicInteger transitions = new AtomicInteger();
+        List<Thread> workers = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int offset = t;
+            workers.add(Thread.ofPlatform().start(() -> {
+                int fired = 0;
+                for (int b = 0; b < BLOCKS; b++) {
+                    for (int i = 0; i < VALIDATORS; i++) {
+                        if (tally.add(b, (i + offset) % VALIDATORS)) fired++;
+                    }
+                }
+                transitions.addAndGet(fired);
+            }));
+        }
+        for (Thread worker : workers) worker.join();
+        long nanos = System.nanoTime() - start;
+        long votes = (long) threads * BLOCKS * VALIDATORS;
+        if (report) {
+            System.out.printf("  %-32s %2d threads %8.1f ns/vote %14.0f votes/s  quorum signals/block %.2f%n",
+                              name, threads, (double) nanos / votes, votes / (nanos / 1e9), (double) transitions.get() / BLOCKS);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+#!/bin/sh
+# Compiles the node and the benchmarks, then runs each suite with its results appended
+# to bench/results/<git revision>.jsonl. Compare two runs with
+#   java -cp out/bench BenchCompare bench/results/<old>.jsonl bench/results/<new>.jsonl
+#
+#   bench/run.sh [suite...]   (default: CryptoBenchmark MessageCodecBenchmark HotPathBenchmark)
+#
+# JAVAC_OPTS and JAVA_OPTS are passed to javac and java.
+set -e
+cd "$(dirname "$0")/.."
+
+REVISION=$(git rev-parse --short HEAD 2>/dev/null || echo unknown)
+RESULTS=bench/results/$REVISION.jsonl
+SUITES="$*"
+[ -z "$SUITES" ] && SUITES="CryptoBenchmark MessageCodecBenchmark HotPathBenchmark"
+
+mkdir -p out/bench bench/results
+javac $JAVAC_OPTS -d out $(find . -maxdepth 1 -name '*.java')
+javac $JAVAC_OPTS -cp out -d out/bench bench/*.java
+
+rm -f "$RESULTS"
+for suite in $SUITES; do
+    echo "== $suite"
+    java $JAVA_OPTS -cp out:out/bench -Dbench.results="$RESULTS" -Dbench.revision="$REVISION" "$suite"
+done
+echo "Results written to $RESULTS"